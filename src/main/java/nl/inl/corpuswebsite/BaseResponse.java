@@ -6,8 +6,13 @@
  */
 package nl.inl.corpuswebsite;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -15,6 +20,8 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.event.EventCartridge;
@@ -23,11 +30,17 @@ import org.apache.velocity.tools.generic.EscapeTool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nl.inl.corpuswebsite.utils.CompressingOutputStream;
+import nl.inl.corpuswebsite.utils.RenderedPage;
+
 public abstract class BaseResponse {
     protected static final Logger logger = LoggerFactory.getLogger(BaseResponse.class);
 
     private static final String OUTPUT_ENCODING = "UTF-8";
 
+    /** Pages smaller than this are not compressed, as it wouldn't save much */
+    private static final int COMPRESSION_THRESHOLD = 1024;
+
     protected static final EscapeTool esc = new EscapeTool();
 
     protected MainServlet servlet;
@@ -39,6 +52,12 @@ public abstract class BaseResponse {
     /** Velocity template variables */
     protected VelocityContext context = new VelocityContext();
 
+    /** Scripts the page will need, the browser is told to start loading them as soon as it has the header */
+    protected List<String> preloadScripts = new ArrayList<>();
+
+    /** Writer for the page, only set once writing has started, see {@link #flushHeader()} */
+    private Writer pageWriter;
+
     /** Does this response require a corpus to be set? */
     private boolean requiresCorpus = false;
 
@@ -105,6 +124,8 @@ public abstract class BaseResponse {
         // Clientside js variables (some might be used in vm directly)
         context.put("pathToTop", servlet.getServletContext().getContextPath());
         context.put("blsUrl", servlet.getExternalWebserviceUrl());
+        context.put("preloadScripts", preloadScripts);
+        context.put("headerSent", false);
 
         logger.debug("jspath {}", servlet.getAdminProps().getProperty(MainServlet.PROP_JSPATH));
 
@@ -138,19 +159,108 @@ public abstract class BaseResponse {
      * @param mimeType mime type to set
      */
     protected void displayTemplate(Template template, String mimeType) {
-        // Set the content headers for the response
-        response.setCharacterEncoding(OUTPUT_ENCODING);
-        response.setContentType(mimeType);
+        try {
+            if (pageWriter == null)
+                pageWriter = startPage(mimeType);
 
-        // Merge context into the page template and write to output stream
-        try (OutputStreamWriter osw = new OutputStreamWriter(response.getOutputStream(), OUTPUT_ENCODING)) {
-            template.merge(context, osw);
-            osw.flush();
+            // Merge context into the page template and write to output stream
+            try (Writer w = pageWriter) {
+                template.merge(context, w);
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Send the page header (header.vm) right away, when enabled in the settings.
+     * The browser can then start loading stylesheets and scripts (see {@link #preloadScripts}) while we're still working on the rest of the page.
+     * The header is then left out when the page template is displayed.
+     *
+     * NOTE: once the header has been sent, the status can no longer be changed, so errors must be shown inside the page (see {@link #isHeaderSent()}).
+     *
+     * @return true if the header was sent
+     */
+    protected boolean flushHeader() {
+        if (pageWriter != null)
+            return true;
+        if (!Boolean.parseBoolean(servlet.getAdminProps().getProperty(MainServlet.PROP_EARLY_FLUSH).trim()))
+            return false;
+
+        try {
+            pageWriter = startPage("text/html");
+            servlet.getTemplate("header").merge(context, pageWriter);
+            pageWriter.flush();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        context.put("headerSent", true);
+        return true;
+    }
+
+    /**
+     * @return true if part of the page has already been sent, see {@link #flushHeader()}
+     */
+    protected boolean isHeaderSent() {
+        return pageWriter != null;
+    }
+
+    /** Set the content headers for the response, and open the (compressed, if possible) output. */
+    private Writer startPage(String mimeType) throws IOException {
+        response.setCharacterEncoding(OUTPUT_ENCODING);
+        response.setContentType(mimeType);
+        response.setHeader("Vary", "Accept-Encoding");
+
+        String compression = getCompression();
+        return new OutputStreamWriter(
+            compression != null ? new CompressingOutputStream(response, compression, COMPRESSION_THRESHOLD) : response.getOutputStream(),
+            OUTPUT_ENCODING);
+    }
+
+    /**
+     * Can the response be compressed using this content-coding?
+     * That is, compression is enabled, and the Accept-Encoding header allows the coding.
+     *
+     * @param coding "gzip" or "deflate"
+     * @return true if the response may be compressed
+     */
+    protected boolean canCompress(String coding) {
+        if (!Boolean.parseBoolean(servlet.getAdminProps().getProperty(MainServlet.PROP_COMPRESS).trim()))
+            return false;
+
+        String header = request.getHeader("Accept-Encoding");
+        if (header == null)
+            return false;
+
+        for (String accepted : header.split(",")) {
+            String[] parts = accepted.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase(coding) && !name.equals("*"))
+                continue;
+
+            boolean rejected = false; // q=0 means "not acceptable"
+            for (int i = 1; i < parts.length; ++i) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        rejected = Double.parseDouble(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        rejected = true;
+                    }
+                }
+            }
+            return !rejected;
+        }
+        return false;
+    }
+
+    /**
+     * @return the content-coding to compress the response with ("gzip" or "deflate"), or null to not compress it.
+     */
+    protected String getCompression() {
+        return canCompress("gzip") ? "gzip" : canCompress("deflate") ? "deflate" : null;
+    }
+
     /**
      * Display a template with the HTML mime type
      *
@@ -160,6 +270,130 @@ public abstract class BaseResponse {
         displayTemplate(template, "text/html");
     }
 
+    /**
+     * Display a template with the HTML mime type, reusing the previously rendered page if the inputs are the same.
+     * The page is sent with an ETag, and a matching If-None-Match is answered with 304 Not Modified.
+     *
+     * Only use this for pages that don't depend on anything but the corpus, its website config, and the given inputs.
+     *
+     * @param templateName name of the template
+     * @param inputs everything else the page depends on, compared using equals(),
+     *        so objects without their own equals() (such as configs) are compared by identity.
+     * @throws IOException
+     */
+    protected void displayCachedHtmlTemplate(String templateName, Object... inputs) throws IOException {
+        displayCachedHtmlTemplate(templateName, () -> {}, inputs);
+    }
+
+    /**
+     * Like {@link #displayCachedHtmlTemplate(String, Object...)}, for pages whose inputs are expensive to read.
+     * The inputs identify the content (e.g. a file and its modification time), which is only put into the context when the page
+     * actually has to be rendered.
+     *
+     * @param templateName name of the template
+     * @param prepare fills the context before rendering, only called if the page isn't cached
+     * @param inputs everything else the page depends on, see {@link #displayCachedHtmlTemplate(String, Object...)}
+     * @throws IOException
+     */
+    protected void displayCachedHtmlTemplate(String templateName, Runnable prepare, Object... inputs) throws IOException {
+        List<Object> key = new ArrayList<>();
+        key.add(templateName);
+        key.add(corpus);
+        key.add(context.get("websiteConfig"));
+        key.addAll(Arrays.asList(inputs));
+
+        RenderedPage page = servlet.getRenderedPage(key, k -> {
+            prepare.run();
+            return renderTemplate(servlet.getTemplate(templateName), "text/html");
+        });
+
+        // Always revalidate, which is cheap as we only need to compare the tag
+        sendPage(page, "no-cache");
+    }
+
+    /**
+     * Read a (utf-8) file to put in a page, such as about.inc and help.inc.
+     *
+     * @param file the file
+     * @return its content
+     * @throws UncheckedIOException if it can't be read
+     */
+    protected static String readContent(File file) {
+        try {
+            return StringUtils.join(FileUtils.readLines(file, "utf-8"), "\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Send a page that's already been rendered, compressed with gzip if possible.
+     * The page is sent with an ETag, and a matching If-None-Match is answered with 304 Not Modified.
+     *
+     * @param page the page
+     * @param cacheControl value for the Cache-Control header
+     * @throws IOException
+     */
+    protected void sendPage(RenderedPage page, String cacheControl) throws IOException {
+        // The compressed page is kept along with the page, so only gzip, deflate is rare enough to not bother.
+        boolean compress = page.getBody().length >= COMPRESSION_THRESHOLD && canCompress("gzip");
+        String etag = compress ? page.getGzippedETag() : page.getETag();
+        byte[] body = compress ? page.getGzippedBody() : page.getBody();
+
+        response.setHeader("Cache-Control", cacheControl);
+        response.setHeader("Vary", "Accept-Encoding");
+        response.setHeader("ETag", etag);
+        if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setCharacterEncoding(page.getCharacterEncoding());
+        response.setContentType(page.getContentType());
+        if (compress)
+            response.setHeader("Content-Encoding", "gzip");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * Merge the template into an in-memory page
+     *
+     * @param template template to render
+     * @param mimeType mime type of the page
+     * @return the page
+     */
+    protected RenderedPage renderTemplate(Template template, String mimeType) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStreamWriter osw = new OutputStreamWriter(out, OUTPUT_ENCODING)) {
+            template.merge(context, osw);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return new RenderedPage(out.toByteArray(), mimeType, OUTPUT_ENCODING);
+    }
+
+    /**
+     * Does an If-None-Match header match the ETag of the current version of a resource?
+     *
+     * @param ifNoneMatch value of the If-None-Match header, may be null
+     * @param etag current ETag (including quotes)
+     * @return true if the client's copy is up to date
+     */
+    protected static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) // If-None-Match uses weak comparison
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Returns the value of a servlet parameter, or the default value
      *
@@ -236,4 +470,14 @@ public abstract class BaseResponse {
     public boolean isCorpusRequired() {
         return requiresCorpus;
     }
+
+    /**
+     * Does this response usually have to wait for something slow, such as blacklab-server?
+     * If so, it's completed outside the servlet container's threads, see {@link MainServlet#PROP_ASYNC_THREADS}.
+     *
+     * @return false by default
+     */
+    public boolean isSlow() {
+        return false;
+    }
 }
@@ -7,33 +7,62 @@
 package nl.inl.corpuswebsite;
 
 import nl.inl.corpuswebsite.response.*;
+import nl.inl.corpuswebsite.utils.Cache;
+import nl.inl.corpuswebsite.utils.CircuitBreaker;
 import nl.inl.corpuswebsite.utils.CorpusConfig;
+import nl.inl.corpuswebsite.utils.DataDirWatcher;
+import nl.inl.corpuswebsite.utils.DaemonThreadFactory;
+import nl.inl.corpuswebsite.utils.HttpClientPool;
 import nl.inl.corpuswebsite.utils.QueryServiceHandler;
 import nl.inl.corpuswebsite.utils.QueryServiceHandler.QueryException;
+import nl.inl.corpuswebsite.utils.RenderedPage;
 import nl.inl.corpuswebsite.utils.WebsiteConfig;
 import nl.inl.corpuswebsite.utils.XslTransformer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.SystemUtils;
 import org.apache.velocity.Template;
-import org.apache.velocity.app.Velocity;
-import org.xml.sax.SAXException;
+import org.apache.velocity.app.VelocityEngine;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerConfigurationException;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -51,30 +80,166 @@ public class MainServlet extends HttpServlet {
 
     private static final String DEFAULT_PAGE = "corpora";
 
+    private static final JsonFactory JSON = new JsonFactory();
+
     /**
      * Where to find the Velocity properties file
      */
     private static final String VELOCITY_PROPERTIES = "/WEB-INF/config/velocity.properties";
 
+    /** Maximum number of compiled stylesheets to keep */
+    private static final int STYLESHEET_CACHE_SIZE = 200;
+
+    /** How long to remember that a stylesheet could not be found */
+    private static final long STYLESHEET_MISSING_TTL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /** How long to keep stylesheets retrieved from blacklab-server */
+    private static final long STYLESHEET_REMOTE_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /** When blacklab-server can't be reached, keep serving outdated stylesheets and documents, and try again after this long */
+    private static final long STALE_RETRY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /** How long to remember that a corpus doesn't exist */
+    private static final long CORPUS_MISSING_TTL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /** Maximum number of rendered pages to keep */
+    private static final int RENDERED_PAGE_CACHE_SIZE = 100;
+
+    /** Maximum memory for rendered pages, the index structures of corpora with long lists of values can be large */
+    private static final long RENDERED_PAGE_MAX_BYTES = 64L * 1024 * 1024;
+
+    /** Rendered pages that haven't been used for this long are evicted, this also cleans up pages for outdated configs */
+    private static final long RENDERED_PAGE_MAX_IDLE_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /** Maximum number of transformed documents to keep, the memory limit is configured with {@link #PROP_ARTICLE_CACHE_SIZE} */
+    private static final int ARTICLE_CACHE_SIZE = 10000;
+
+    /** Documents may have been reindexed, so transform them again after a while */
+    private static final long ARTICLE_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /** Maximum memory for prefetched documents that haven't been requested yet */
+    private static final long PREFETCHED_ARTICLE_MAX_BYTES = 32L * 1024 * 1024;
+
+    /** Prefetched documents that aren't requested within this time are discarded */
+    private static final long PREFETCHED_ARTICLE_TTL_MS = TimeUnit.MINUTES.toMillis(2);
+
+    /** Maximum number of slow requests waiting for a thread per async thread, more are processed on the container's thread */
+    private static final int ASYNC_QUEUE_SIZE = 20;
+
+    /** Maximum number of prefetches waiting for a thread per prefetch thread, more are dropped */
+    private static final int PREFETCH_QUEUE_SIZE = 4;
+
+    /** Maximum number of static files to keep compressed in memory (files are at most 1MB) */
+    private static final int COMPRESSED_FILE_CACHE_SIZE = 100;
+
+    /** Compressed static files that haven't been requested for this long are evicted */
+    private static final long COMPRESSED_FILE_MAX_IDLE_MS = TimeUnit.MINUTES.toMillis(30);
+
+    /** Maximum number of resolved project files (and files known not to exist) to keep */
+    private static final int PROJECT_FILE_CACHE_SIZE = 10000;
+
+    /** How long to keep resolved project files when we can't watch the data dir for changes */
+    private static final long PROJECT_FILE_UNWATCHED_TTL_MS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * How long to keep resolved project files while watching the data dir. Not forever, as not all changes are reported,
+     * e.g. those made by other hosts on a shared (network) filesystem.
+     */
+    private static final long PROJECT_FILE_WATCHED_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    /** Wait this long after a change in the data dir before reloading, so a burst of changes causes a single reload */
+    private static final long RELOAD_DELAY_MS = 1000;
+
+    /** User corpora that haven't been used for this long are evicted */
+    private static final long USER_CORPUS_MAX_IDLE_MS = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * Per-corpus configuration parameters (from search.xml), keyed by corpus, "" for the config outside any corpus.
+     * Loaded per corpus, so a corpus that is slow to load doesn't hold up requests for other corpora.
+     * Combined again whenever the corpus' entry in {@link #corpusConfigs} changes, or if it couldn't be retrieved the first time.
+     */
+    private Cache<String, WebsiteConfig> websiteConfigs;
+
+    /**
+     * Per-corpus structure and configuration gotten from blacklab-server (IndexStructure).
+     * Refreshed in the background every so often, so changes in the index are picked up without a restart.
+     * Empty if the corpus doesn't exist (remembered for a short time only).
+     */
+    private Cache<String, Optional<CorpusConfig>> corpusConfigs;
+
+    /**
+     * Where to find our Velocity templates
+     */
+    private static final String TEMPLATE_PATH = "/WEB-INF/templates/";
+
+    /** Settings for the Velocity engines that compile our templates, see {@link #compileTemplates()} */
+    private Properties velocityProperties;
+
+    /**
+     * Our Velocity templates, keyed by name (without the .vm suffix).
+     * Compiled at startup, never modified, only replaced as a whole (see {@link #reloadTemplates()}), so it can be read without locking.
+     */
+    private volatile Map<String, Template> templates = Collections.emptyMap();
+
+    /**
+     * Xslt transformers for corpora, keyed by [corpus, corpusDataFormat].
+     *
+     * Stylesheets from files are reloaded when the file changes.
+     * Those from blacklab-server, and failures (e.g. blacklab-server was briefly unreachable) are retried after a while.
+     */
+    private final Cache<List<String>, Optional<XslTransformer>> articleTransformers =
+        new Cache<List<String>, Optional<XslTransformer>>(STYLESHEET_CACHE_SIZE, this::loadStylesheet)
+            .setValidator(t -> !t.isPresent() || !t.get().isModified())
+            .setTimeToLive(t -> !t.isPresent() ? STYLESHEET_MISSING_TTL_MS : t.get().getFile().isPresent() ? 0 : STYLESHEET_REMOTE_TTL_MS)
+            .setServeStaleOnError(STALE_RETRY_MS, QueryServiceHandler::isUnavailable);
+
+    /**
+     * Rendered pages, keyed by everything the page depends on (see {@link BaseResponse#displayCachedHtmlTemplate(String, Object...)}).
+     * Since configs are part of the key, pages are rendered again when a config is reloaded,
+     * and the pages for the old config are eventually evicted.
+     */
+    private final Cache<List<Object>, RenderedPage> renderedPages = new Cache<List<Object>, RenderedPage>(RENDERED_PAGE_CACHE_SIZE)
+        .setWeigher(RenderedPage::getSize, RENDERED_PAGE_MAX_BYTES)
+        .setMaxIdle(RENDERED_PAGE_MAX_IDLE_MS);
+
     /**
-     * Per-corpus configuration parameters (from search.xml)
+     * Transformed documents, keyed by everything the transformed content and metadata depend on (see {@link ArticleResponse}).
+     * Weighted by their size in memory. Null when disabled.
      */
-    private static final Map<String, WebsiteConfig> configs = new HashMap<>();
+    private Cache<List<Object>, ArticleResponse.Article> articles;
 
     /**
-     * Per-corpus structure and configuration gotten from blacklab-server (IndexStructure)
+     * Documents retrieved and transformed before they were requested (see {@link #prefetchArticle(List, Function)}),
+     * keyed like {@link #articles}. Removed once they are requested. Null when prefetching is disabled.
      */
-    private static final Map<String, CorpusConfig> corpusConfigs = new HashMap<>();
+    private Cache<List<Object>, ArticleResponse.Article> prefetchedArticles;
 
     /**
-     * Our Velocity templates
+     * Gzipped static files, keyed by [path, size, modification time], so a changed file is compressed again.
      */
-    private static final Map<String, Template> templates = new HashMap<>();
+    private final Cache<List<Object>, byte[]> compressedStaticFiles = new Cache<List<Object>, byte[]>(COMPRESSED_FILE_CACHE_SIZE)
+        .setMaxIdle(COMPRESSED_FILE_MAX_IDLE_MS);
 
     /**
-     * Xslt transformers for corpora
+     * Resolved project files (see {@link #getProjectFile(String, String)}), keyed by [corpus directory or "", file path].
+     * Also remembers files that don't exist. Invalidated by {@link #dataDirWatcher} when the data dir changes.
      */
-    private static final Map<String, Optional<XslTransformer>> articleTransformers = new HashMap<>();
+    private Cache<List<String>, Optional<File>> projectFiles;
+
+    /**
+     * Reports changes in the data dir, null if the data dir doesn't exist or can't be watched.
+     */
+    private DataDirWatcher dataDirWatcher;
+
+    /**
+     * Schedules reloads after changes in the data dir.
+     */
+    private ScheduledExecutorService reloadScheduler;
+
+    /**
+     * Corpora for which a reload has been scheduled, "" for all corpora.
+     */
+    private final Set<String> pendingReloads = ConcurrentHashMap.newKeySet();
 
     /**
      * The response classes for our URI patterns
@@ -86,6 +251,48 @@ public class MainServlet extends HttpServlet {
      */
     private String contextPath;
 
+    /**
+     * For retrieving and processing independent parts of a response in parallel
+     */
+    private ExecutorService requestExecutor;
+
+    /**
+     * For refreshing cached data in the background
+     */
+    private ExecutorService refreshExecutor;
+
+    /**
+     * For completing slow responses (see {@link BaseResponse#isSlow()}) outside the container's threads, null when disabled.
+     */
+    private ExecutorService asyncExecutor;
+
+    /** How long (in milliseconds) a slow response may take before it's answered with an error, see {@link #PROP_ASYNC_TIMEOUT} */
+    private long asyncTimeoutMs;
+
+    /**
+     * For prefetching documents, null when disabled. Small, low priority, and drops work when it can't keep up.
+     */
+    private ExecutorService prefetchExecutor;
+
+    /** Requests that are being processed, including those completed asynchronously, see {@link #processRequest} */
+    private final AtomicInteger activeRequests = new AtomicInteger();
+
+    /**
+     * Documents are only prefetched while no more than this many requests are being processed.
+     * Prefetches compete with those requests for connections to blacklab-server, so this is half of those.
+     */
+    private int prefetchMaxActiveRequests;
+
+    /**
+     * For loading corpora, templates and stylesheets at startup, shut down when done.
+     */
+    private ExecutorService warmupExecutor;
+
+    /**
+     * Has the warm-up finished (or is it disabled)? See {@link #isReady()}.
+     */
+    private volatile boolean ready = false;
+
     // @formatter:off
     public static final String PROP_ANALYTICS_KEY           = "googleAnalyticsKey";
     /** Url to reach blacklab-server from this application */
@@ -100,6 +307,48 @@ public class MainServlet extends HttpServlet {
     public static final String PROP_DOCUMENT_PAGE_LENGTH    = "wordend";
     /** Development mode, allow script tags to load load js from an external server (webpack-dev-server), defaults to $pathToTop/js/ */
     public static final String PROP_JSPATH					= "jspath"; // usually set to http://127.0.0.1/dist/ for development
+    /** Timeout (in milliseconds) for connecting to blacklab-server, and for waiting on a free connection, 0 to wait indefinitely */
+    public static final String PROP_BLS_CONNECT_TIMEOUT     = "blsConnectTimeout";
+    /** Timeout (in milliseconds) for receiving data from blacklab-server, 0 to wait indefinitely */
+    public static final String PROP_BLS_READ_TIMEOUT        = "blsReadTimeout";
+    /** Percentage of failed or slow requests (of the last 20) at which to stop sending requests to blacklab-server for a while, 0 to always send requests */
+    public static final String PROP_BLS_FAILURE_THRESHOLD   = "blsFailureThreshold";
+    /** Time (in milliseconds) after which a request to blacklab-server counts as failed, 0 to only count errors */
+    public static final String PROP_BLS_SLOW_THRESHOLD      = "blsSlowThreshold";
+    /** Time (in seconds) to wait before trying blacklab-server again after it failed */
+    public static final String PROP_BLS_RETRY_DELAY         = "blsRetryDelay";
+    /** Maximum number of simultaneous (pooled) connections to blacklab-server */
+    public static final String PROP_BLS_MAX_CONNECTIONS     = "blsMaxConnections";
+    /** Maximum number of simultaneous (pooled) connections to a single host */
+    public static final String PROP_BLS_MAX_CONNECTIONS_PER_HOST = "blsMaxConnectionsPerHost";
+    /** Number of threads for retrieving and processing parts of a response (such as the document contents and metadata) in parallel */
+    public static final String PROP_REQUEST_THREADS         = "requestThreads";
+    /** Time (in seconds) after which a corpus' configuration is reloaded from blacklab-server in the background */
+    public static final String PROP_CORPUS_CONFIG_TTL       = "corpusConfigTtl";
+    /** Maximum number of corpus configurations (both from blacklab-server and search.xml) to keep in memory, only user corpora are evicted */
+    public static final String PROP_CORPUS_CONFIG_CACHE_SIZE = "corpusConfigCacheSize";
+    /** Load all corpora, templates and stylesheets at startup, instead of when they're first used */
+    public static final String PROP_WARMUP                  = "warmupOnStartup";
+    /** Number of threads used for the warm-up */
+    public static final String PROP_WARMUP_THREADS          = "warmupThreads";
+    /** Compress pages and static files (with gzip or deflate) when the browser supports it */
+    public static final String PROP_COMPRESS                = "compressResponses";
+    /** Send the page header before the rest of slow pages (such as documents) is ready, so the browser can start loading scripts and stylesheets */
+    public static final String PROP_EARLY_FLUSH             = "earlyFlush";
+    /** Secret for the admin page (reloading configuration, statistics), the admin page is disabled when not set */
+    public static final String PROP_ADMIN_TOKEN             = "adminToken";
+    /** Memory (in megabytes) for keeping transformed documents, 0 to disable */
+    public static final String PROP_ARTICLE_CACHE_SIZE      = "articleCacheSize";
+    /** Number of threads for retrieving the next page of a document in the background while it's being read, 0 to disable */
+    public static final String PROP_PREFETCH_THREADS        = "prefetchThreads";
+    /** Number of threads for completing slow pages (such as documents) outside the servlet container's threads, 0 to disable */
+    public static final String PROP_ASYNC_THREADS           = "asyncThreads";
+    /** Time (in seconds) after which a slow page that's still being completed outside the container's threads is answered with an error */
+    public static final String PROP_ASYNC_TIMEOUT           = "asyncTimeout";
+    /** Use virtual threads (Java 21 and later) for slow pages and blacklab-server requests, instead of limited thread pools */
+    public static final String PROP_VIRTUAL_THREADS         = "virtualThreads";
+    /** Development mode, allow reloading the templates by adding ?reloadTemplates=true to any page */
+    public static final String PROP_DEV_MODE                = "devMode";
     // @formatter:on
 
     /**
@@ -123,6 +372,26 @@ public class MainServlet extends HttpServlet {
         p.setProperty(PROP_DATA_DEFAULT,            "default");
         p.setProperty(PROP_DOCUMENT_PAGE_LENGTH,    "5000");
         p.setProperty(PROP_JSPATH,                  contextPath+"/js");
+        p.setProperty(PROP_BLS_CONNECT_TIMEOUT,     "10000");
+        p.setProperty(PROP_BLS_READ_TIMEOUT,        "60000");
+        p.setProperty(PROP_BLS_FAILURE_THRESHOLD,   "50");
+        p.setProperty(PROP_BLS_SLOW_THRESHOLD,      "20000");
+        p.setProperty(PROP_BLS_RETRY_DELAY,         "30");
+        p.setProperty(PROP_BLS_MAX_CONNECTIONS,     "50");
+        p.setProperty(PROP_BLS_MAX_CONNECTIONS_PER_HOST, "20");
+        p.setProperty(PROP_REQUEST_THREADS,         "16");
+        p.setProperty(PROP_CORPUS_CONFIG_TTL,       "600");
+        p.setProperty(PROP_CORPUS_CONFIG_CACHE_SIZE, "500");
+        p.setProperty(PROP_WARMUP,                  "false");
+        p.setProperty(PROP_WARMUP_THREADS,          "4");
+        p.setProperty(PROP_DEV_MODE,                "false");
+        p.setProperty(PROP_COMPRESS,                "true");
+        p.setProperty(PROP_EARLY_FLUSH,             "false");
+        p.setProperty(PROP_ARTICLE_CACHE_SIZE,      "64");
+        p.setProperty(PROP_PREFETCH_THREADS,        "0");
+        p.setProperty(PROP_ASYNC_THREADS,           "50");
+        p.setProperty(PROP_ASYNC_TIMEOUT,           "300");
+        p.setProperty(PROP_VIRTUAL_THREADS,         "false");
         // not all properties may need defaults
         // @formatter:on
 
@@ -137,8 +406,6 @@ public class MainServlet extends HttpServlet {
         super.init(cfg);
 
         try {
-            startVelocity(cfg);
-
             String warName = cfg.getServletContext().getContextPath().replaceAll("^/", "");
             contextPath = cfg.getServletContext().getContextPath();
 
@@ -172,6 +439,100 @@ public class MainServlet extends HttpServlet {
             if (!Paths.get(adminProps.getProperty(PROP_DATA_PATH)).isAbsolute()) {
                 throw new ServletException(PROP_DATA_PATH + " setting should be an absolute path");
             }
+
+            startVelocity(cfg);
+            templates = compileTemplates();
+
+            QueryServiceHandler.setConnectionPool(new HttpClientPool(
+                getIntProperty(PROP_BLS_MAX_CONNECTIONS),
+                getIntProperty(PROP_BLS_MAX_CONNECTIONS_PER_HOST),
+                getIntProperty(PROP_BLS_CONNECT_TIMEOUT),
+                getIntProperty(PROP_BLS_READ_TIMEOUT)));
+            int failureThreshold = getIntProperty(PROP_BLS_FAILURE_THRESHOLD);
+            QueryServiceHandler.setCircuitBreaker(failureThreshold <= 0 ? null : new CircuitBreaker("blacklab-server", failureThreshold,
+                getIntProperty(PROP_BLS_SLOW_THRESHOLD), TimeUnit.SECONDS.toMillis(getIntProperty(PROP_BLS_RETRY_DELAY))));
+
+            Optional<ExecutorService> virtualRequestExecutor = Boolean.parseBoolean(adminProps.getProperty(PROP_VIRTUAL_THREADS))
+                ? newVirtualThreadExecutor()
+                : Optional.empty();
+            boolean virtualThreads = virtualRequestExecutor.isPresent();
+            if (!virtualThreads && Boolean.parseBoolean(adminProps.getProperty(PROP_VIRTUAL_THREADS)))
+                logger.warn("{} requires Java 21 or later, using regular threads", PROP_VIRTUAL_THREADS);
+
+            // When all threads are busy and the queue is full, run tasks in the requesting thread,
+            // so we degrade to sequential processing instead of failing.
+            // Virtual threads are cheap enough to not need a limit, the blacklab-server connection pool limits the outgoing requests.
+            int requestThreads = Math.max(1, getIntProperty(PROP_REQUEST_THREADS));
+            if (virtualThreads) {
+                requestExecutor = virtualRequestExecutor.get();
+            } else {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(requestThreads, requestThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(requestThreads * 16), new DaemonThreadFactory("corpus-frontend-request"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+                executor.allowCoreThreadTimeOut(true);
+                requestExecutor = executor;
+            }
+            // Waiting slow requests are only cheap as long as they haven't started; when too many are waiting,
+            // the container thread does the work, which slows down accepting new requests instead of queueing them without bounds.
+            int asyncThreads = getIntProperty(PROP_ASYNC_THREADS);
+            if (asyncThreads > 0 && virtualThreads) {
+                asyncExecutor = newVirtualThreadExecutor().get();
+            } else if (asyncThreads > 0) {
+                ThreadPoolExecutor async = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(asyncThreads * ASYNC_QUEUE_SIZE), new DaemonThreadFactory("corpus-frontend-async"),
+                    new ThreadPoolExecutor.AbortPolicy());
+                async.allowCoreThreadTimeOut(true);
+                asyncExecutor = async;
+            }
+            asyncTimeoutMs = TimeUnit.SECONDS.toMillis(Math.max(1, getIntProperty(PROP_ASYNC_TIMEOUT)));
+            refreshExecutor = Executors.newFixedThreadPool(2, new DaemonThreadFactory("corpus-frontend-refresh", Thread.MIN_PRIORITY));
+
+            corpusConfigs = new Cache<String, Optional<CorpusConfig>>(getIntProperty(PROP_CORPUS_CONFIG_CACHE_SIZE), this::loadCorpusConfig)
+                .setTimeToLive(c -> c.isPresent() ? 0 : CORPUS_MISSING_TTL_MS)
+                .setRefreshAfter(TimeUnit.SECONDS.toMillis(getIntProperty(PROP_CORPUS_CONFIG_TTL)), refreshExecutor)
+                .setEvictable(MainServlet::isUserCorpus)
+                .setMaxIdle(USER_CORPUS_MAX_IDLE_MS);
+
+            reloadScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("corpus-frontend-reload", Thread.MIN_PRIORITY));
+            articleTransformers.setRefreshExecutor(refreshExecutor);
+            long articleCacheBytes = getIntProperty(PROP_ARTICLE_CACHE_SIZE) * 1024L * 1024L;
+            if (articleCacheBytes > 0) {
+                articles = new Cache<List<Object>, ArticleResponse.Article>(ARTICLE_CACHE_SIZE)
+                    .setWeigher(ArticleResponse.Article::getSize, articleCacheBytes)
+                    .setTimeToLive(a -> ARTICLE_TTL_MS)
+                    .setServeStaleOnError(STALE_RETRY_MS, QueryServiceHandler::isUnavailable);
+            }
+
+            // Prefetching should never slow down requests, so use few low priority threads, and drop prefetches when they can't keep up.
+            int prefetchThreads = getIntProperty(PROP_PREFETCH_THREADS);
+            if (prefetchThreads > 0) {
+                ThreadPoolExecutor prefetch = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(prefetchThreads * PREFETCH_QUEUE_SIZE), new DaemonThreadFactory("corpus-frontend-prefetch", Thread.MIN_PRIORITY),
+                    new ThreadPoolExecutor.DiscardPolicy());
+                prefetch.allowCoreThreadTimeOut(true);
+                prefetchExecutor = prefetch;
+                prefetchMaxActiveRequests = Math.max(1, getIntProperty(PROP_BLS_MAX_CONNECTIONS) / 2);
+                prefetchedArticles = new Cache<List<Object>, ArticleResponse.Article>(ARTICLE_CACHE_SIZE)
+                    .setWeigher(ArticleResponse.Article::getSize, PREFETCHED_ARTICLE_MAX_BYTES)
+                    .setTimeToLive(a -> PREFETCHED_ARTICLE_TTL_MS);
+            }
+
+            projectFiles = new Cache<List<String>, Optional<File>>(PROJECT_FILE_CACHE_SIZE, this::resolveProjectFile);
+            Optional<Path> dataDir = getIfValid(adminProps.getProperty(PROP_DATA_PATH)).filter(Files::isDirectory);
+            try {
+                if (dataDir.isPresent())
+                    dataDirWatcher = new DataDirWatcher(dataDir.get(), changed -> onDataDirChanged(dataDir.get(), changed));
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.warn("Cannot watch {} for changes, changes may take a few seconds to be picked up: {}", dataDir.get(), e.getMessage());
+            }
+            long projectFileTtl = dataDirWatcher != null ? PROJECT_FILE_WATCHED_TTL_MS : PROJECT_FILE_UNWATCHED_TTL_MS;
+            projectFiles.setTimeToLive(f -> projectFileTtl);
+
+            websiteConfigs = new Cache<String, WebsiteConfig>(getIntProperty(PROP_CORPUS_CONFIG_CACHE_SIZE), this::loadWebsiteConfig)
+                .setValidator(this::isCombinedWithCurrentCorpusConfig)
+                .setRefreshExecutor(refreshExecutor)
+                .setEvictable(MainServlet::isUserCorpus)
+                .setMaxIdle(USER_CORPUS_MAX_IDLE_MS);
         } catch (ServletException e) {
             throw e;
         } catch (Exception e) {
@@ -187,6 +548,150 @@ public class MainServlet extends HttpServlet {
         responses.put("docs", ArticleResponse.class);
         responses.put("static", CorporaDataResponse.class);
         responses.put("upload", RemoteIndexResponse.class);
+        responses.put("ready", ReadyResponse.class);
+        responses.put("admin", AdminResponse.class);
+        responses.put("index-structure", IndexStructureResponse.class);
+
+        if (Boolean.parseBoolean(adminProps.getProperty(PROP_WARMUP).trim())) {
+            warmUp();
+        } else {
+            ready = true;
+        }
+    }
+
+    /**
+     * Load everything the first visitor to a corpus would otherwise have to wait for:
+     * the corpus config from blacklab-server, search.xml, and the article stylesheets (templates are always compiled in init).
+     *
+     * This is done in the background for every corpus that has a directory in the data dir,
+     * and every public corpus on blacklab-server. {@link #isReady()} returns true once it's done.
+     * Failures are only logged, the corpus will just be loaded when it's first used instead.
+     */
+    private void warmUp() {
+        long start = System.currentTimeMillis();
+        warmupExecutor = Executors.newFixedThreadPool(Math.max(1, getIntProperty(PROP_WARMUP_THREADS)),
+            new DaemonThreadFactory("corpus-frontend-warmup"));
+
+        CompletableFuture
+            .supplyAsync(this::getCorporaToWarmUp, warmupExecutor)
+            .thenCompose(names -> CompletableFuture.allOf(Stream.concat(Stream.of((String) null), names.stream())
+                .map(corpus -> CompletableFuture.runAsync(() -> warmUpCorpus(corpus), warmupExecutor))
+                .toArray(CompletableFuture[]::new)))
+            .whenComplete((r, e) -> {
+                if (e != null)
+                    logger.warn("Warm-up did not complete: {}", e.getMessage());
+                else
+                    logger.info("Warm-up finished in {} ms", System.currentTimeMillis() - start);
+                warmupExecutor.shutdown();
+                ready = true;
+            });
+    }
+
+    /**
+     * @param corpus the corpus, or null for the pages outside any corpus
+     */
+    private void warmUpCorpus(String corpus) {
+        try {
+            CorpusConfig config = getCorpusConfig(corpus);
+            if (corpus != null && config == null) {
+                logger.debug("Skipping warm-up of {}, blacklab-server doesn't know it", corpus);
+                return;
+            }
+
+            getWebsiteConfig(corpus);
+            if (config != null) {
+                getStylesheet(corpus, config.getCorpusDataFormat());
+                getStylesheet(corpus, "meta");
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Error during warm-up of corpus {}: {}", corpus, e.getMessage());
+        }
+    }
+
+    /**
+     * @return the corpora that have a directory in the data dir, and the public corpora on blacklab-server
+     */
+    private Set<String> getCorporaToWarmUp() {
+        Set<String> corpora = new TreeSet<>();
+
+        Optional<Path> dataDir = getIfValid(adminProps.getProperty(PROP_DATA_PATH)).filter(Files::isDirectory);
+        if (dataDir.isPresent()) {
+            try (Stream<Path> dirs = Files.list(dataDir.get())) {
+                dirs.filter(Files::isDirectory)
+                    .map(dir -> dir.getFileName().toString())
+                    .filter(name -> !name.equals(adminProps.getProperty(PROP_DATA_DEFAULT)))
+                    .forEach(corpora::add);
+            } catch (IOException e) {
+                logger.warn("Could not list corpora in {}: {}", dataDir.get(), e.getMessage());
+            }
+        }
+
+        Map<String, String[]> params = new HashMap<>();
+        params.put("outputformat", new String[] { "json" });
+        try (Reader json = new QueryServiceHandler(getWebserviceUrl(null)).makeRequestReader(params);
+             JsonParser p = JSON.createParser(json)) {
+            // Only the names (keys) of the "indices" object at the root are needed
+            if (p.nextToken() == JsonToken.START_OBJECT) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = p.getCurrentName();
+                    if (p.nextToken() == JsonToken.START_OBJECT && name.equals("indices")) {
+                        while (p.nextToken() == JsonToken.FIELD_NAME) {
+                            corpora.add(p.getCurrentName());
+                            p.nextToken();
+                            p.skipChildren();
+                        }
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+            }
+        } catch (IOException | QueryException e) {
+            logger.warn("Could not get list of corpora from blacklab-server: {}", e.getMessage());
+        }
+
+        return corpora;
+    }
+
+    /**
+     * @return true when the application is ready to serve requests: the warm-up has finished or is disabled.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void destroy() {
+        if (requestExecutor != null)
+            requestExecutor.shutdownNow();
+        if (refreshExecutor != null)
+            refreshExecutor.shutdownNow();
+        if (warmupExecutor != null)
+            warmupExecutor.shutdownNow();
+        if (prefetchExecutor != null)
+            prefetchExecutor.shutdownNow();
+        if (asyncExecutor != null)
+            asyncExecutor.shutdownNow();
+        if (reloadScheduler != null)
+            reloadScheduler.shutdownNow();
+        if (dataDirWatcher != null) {
+            try {
+                dataDirWatcher.close();
+            } catch (IOException e) {
+                logger.warn("Error closing data dir watcher: {}", e.getMessage());
+            }
+        }
+
+        HttpClientPool pool = QueryServiceHandler.getConnectionPool();
+        logger.info("Closing blacklab-server connection pool ({})", pool.getStats());
+        try {
+            pool.close();
+        } catch (IOException e) {
+            logger.warn("Error closing connection pool: {}", e.getMessage());
+        }
+        QueryServiceHandler.setConnectionPool(null);
+        QueryServiceHandler.setCircuitBreaker(null);
+
+        super.destroy();
     }
 
     /**
@@ -248,42 +753,87 @@ public class MainServlet extends HttpServlet {
      * @throws Exception
      */
     private void startVelocity(ServletConfig servletConfig) throws Exception {
-        Velocity.setApplicationAttribute("javax.servlet.ServletContext", servletConfig.getServletContext());
-
         Properties p = new Properties();
         try (InputStream is = getServletContext().getResourceAsStream(VELOCITY_PROPERTIES)) {
             p.load(is);
         }
-        Velocity.init(p);
+        // Also keep included templates (#parse) compiled, except in development mode, where they should be reloaded along with the rest.
+        p.setProperty("webapp.resource.loader.cache", Boolean.toString(!isDevMode()));
+        p.setProperty("webapp.resource.loader.modificationCheckInterval", "0");
+        velocityProperties = p;
     }
 
     /**
-     * Get the velocity template
+     * A new Velocity engine, with its own (empty) cache of compiled templates.
+     * The templates compiled by an engine keep using it, also for the templates they include.
+     */
+    private VelocityEngine newVelocityEngine() throws Exception {
+        VelocityEngine engine = new VelocityEngine();
+        engine.setApplicationAttribute("javax.servlet.ServletContext", getServletContext());
+        engine.init(velocityProperties);
+        return engine;
+    }
+
+    /**
+     * Compile all templates in {@link #TEMPLATE_PATH}.
+     * Uses a new Velocity engine every time, as an engine never compiles a template again once it's in its cache.
      *
-     * @param templateName name of the template, excluding filename (.vm) suffix
-     * @return velocity template
+     * @return the templates, keyed by name (without the .vm suffix)
+     * @throws RuntimeException when a template can't be compiled
      */
-    public synchronized Template getTemplate(String templateName) {
-        templateName = templateName + ".vm";
+    private Map<String, Template> compileTemplates() {
+        VelocityEngine engine;
+        try {
+            engine = newVelocityEngine();
+        } catch (Exception e) {
+            throw new RuntimeException("Could not start Velocity", e);
+        }
 
-        if (Velocity.resourceExists(templateName)) {
-            if (templates.containsKey(templateName)) {
-                return templates.get(templateName);
-            }
+        Map<String, Template> compiled = new HashMap<>();
+        Set<String> paths = getServletContext().getResourcePaths(TEMPLATE_PATH);
+        for (String path : paths != null ? paths : Collections.<String>emptySet()) {
+            if (!path.endsWith(".vm"))
+                continue;
 
+            String fileName = path.substring(TEMPLATE_PATH.length());
             try {
-                Template t = Velocity.getTemplate(templateName, "utf-8");
-                templates.put(templateName, t);
-                return t;
+                compiled.put(fileName.substring(0, fileName.length() - ".vm".length()), engine.getTemplate(fileName, "utf-8"));
             } catch (Exception e) {
-                throw new RuntimeException(e);
+                throw new RuntimeException("Could not compile template " + path, e);
             }
         }
 
-        // The template doesn't exist so we'll display an error page
-        // it is important that the error template is available
-        // or we'll end up in an infinite loop
-        return getTemplate("error");
+        if (!compiled.containsKey("error"))
+            throw new IllegalStateException("Missing error template in " + TEMPLATE_PATH);
+
+        logger.debug("Compiled templates {}", compiled.keySet());
+        return Collections.unmodifiableMap(compiled);
+    }
+
+    /**
+     * Compile all templates again and replace the current ones.
+     * When a template can't be compiled, the current templates are kept.
+     *
+     * @throws RuntimeException when a template can't be compiled
+     */
+    public void reloadTemplates() {
+        templates = compileTemplates();
+        logger.info("Reloaded templates");
+    }
+
+    /**
+     * Get the velocity template
+     *
+     * @param templateName name of the template, excluding filename (.vm) suffix
+     * @return velocity template, or the error template if it doesn't exist
+     */
+    public Template getTemplate(String templateName) {
+        Map<String, Template> t = templates;
+        return t.getOrDefault(templateName, t.get("error"));
+    }
+
+    public boolean isDevMode() {
+        return Boolean.parseBoolean(adminProps.getProperty(PROP_DEV_MODE).trim());
     }
 
     /**
@@ -292,17 +842,36 @@ public class MainServlet extends HttpServlet {
      * @param corpus which corpus to read config for, may be null for the default config.
      * @return the website config
      */
-    public synchronized WebsiteConfig getWebsiteConfig(String corpus) {
-        return configs.computeIfAbsent(corpus, c -> {
-            File f =
-                getProjectFile(corpus, "search.xml")
-                    .orElseThrow(() -> new IllegalStateException("No search.xml, and no default in jar either"));
-            try {
-                return new WebsiteConfig(f, corpus, getCorpusConfig(corpus), contextPath);
-            } catch (Exception e) {
-                throw new RuntimeException("Could not read search.xml " + f, e);
-            }
-        });
+    public WebsiteConfig getWebsiteConfig(String corpus) {
+        return websiteConfigs.get(corpus == null ? "" : corpus);
+    }
+
+    /**
+     * Was the website config combined with the current config from blacklab-server?
+     * If not (because that has been refreshed, or has been retrieved since), it must be combined again.
+     */
+    private boolean isCombinedWithCurrentCorpusConfig(WebsiteConfig config) {
+        if (config.getCorpusId() == null)
+            return true; // not for a corpus
+        // Peek, so this doesn't count as a lookup of the corpus config
+        return WebsiteConfig.isUpToDate(config.getCorpusConfig(), corpusConfigs.peek(config.getCorpusId()));
+    }
+
+    /**
+     * Read search.xml for a corpus, see {@link #getWebsiteConfig(String)}.
+     *
+     * @param corpus which corpus to read config for, empty for the default config.
+     */
+    private WebsiteConfig loadWebsiteConfig(String corpus) {
+        String c = corpus.isEmpty() ? null : corpus;
+        File f =
+            getProjectFile(c, "search.xml")
+                .orElseThrow(() -> new IllegalStateException("No search.xml, and no default in jar either"));
+        try {
+            return new WebsiteConfig(f, c, getCorpusConfig(c), contextPath);
+        } catch (Exception e) {
+            throw new RuntimeException("Could not read search.xml " + f, e);
+        }
     }
 
     /**
@@ -315,48 +884,65 @@ public class MainServlet extends HttpServlet {
         if (corpus == null || corpus.isEmpty()) {
             return null;
         }
-        if (!corpusConfigs.containsKey(corpus)) {
-            // Contact blacklab-server for the config xml file
-            QueryServiceHandler handler = new QueryServiceHandler(getWebserviceUrl(corpus));
 
-            try {
-                String userId = getCorpusOwner(corpus);
-                Map<String, String[]> params = new HashMap<>();
-
-                String xmlConfig = getXml(userId, handler, params);
+        try {
+            return corpusConfigs.get(corpus).orElse(null);
+        } catch (RuntimeException e) {
+            logger.warn("Could not load config for corpus {}: {}", corpus, e.getMessage());
+            return null;
+        }
+    }
 
-                String selectProperties = CorpusConfig.getSelectProperties(xmlConfig);
+    /**
+     * Retrieve the config for a corpus from blacklab-server.
+     *
+     * @param corpus name of the corpus
+     * @return the config, or empty if blacklab-server doesn't know the corpus (or we're not allowed to see it)
+     * @throws RuntimeException when blacklab-server can't be reached or returns an error.
+     */
+    private Optional<CorpusConfig> loadCorpusConfig(String corpus) {
+        QueryServiceHandler handler = new QueryServiceHandler(getWebserviceUrl(corpus));
 
-                if (!selectProperties.isEmpty()) {
-                    // again retrieve config with values for props with uitype select
-                    params.clear();
-                    params.put("listvalues", new String[] { selectProperties });
-                    xmlConfig = getXml(userId, handler, params);
-                }
+        try {
+            // Everything we need is in the json index structure, except for the values of annotations shown as dropdowns.
+            // So only when the corpus has such annotations, we need to request it again, with those values.
+            String userId = getCorpusOwner(corpus);
+            CorpusConfig config = new CorpusConfig(getJson(userId, handler, null));
+
+            String selectProperties = config.getSelectProperties();
+            if (!selectProperties.isEmpty()) {
+                config = new CorpusConfig(getJson(userId, handler, selectProperties));
+            }
 
-                // TODO tidy this up, the json is only used to embed the index data in the search page.
-                // We might not need the xml data to begin with.
-                params.clear();
-                params.put("outputformat", new String[] { "json" });
-                params.put("listvalues", new String[] { selectProperties }); // useful for frontend
-                if (userId != null)
-                    params.put("userid", new String[] { userId });
-                String jsonResult = handler.makeRequest(params);
-
-                corpusConfigs.put(corpus, new CorpusConfig(xmlConfig, jsonResult));
-            } catch (IOException | SAXException | ParserConfigurationException | QueryException e) {
-                return null;
+            return Optional.of(config);
+        } catch (QueryException e) {
+            if (e.getHttpStatusCode() >= 400 && e.getHttpStatusCode() < 500) {
+                return Optional.empty(); // unknown corpus or not allowed
             }
+            throw new RuntimeException("blacklab-server returned " + e.getHttpStatusCode() + " " + e.getReason(), e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-
-        return corpusConfigs.get(corpus);
     }
 
-    private static String getXml(String userId, QueryServiceHandler handler, Map<String, String[]> params) throws IOException, QueryException {
-        params.put("outputformat", new String[] { "xml" });
+    /**
+     * Request the index structure as json
+     *
+     * @param userId (optional) owner of the corpus
+     * @param handler
+     * @param listValues (optional) comma-separated list of annotations to include the values for
+     */
+    private static String getJson(String userId, QueryServiceHandler handler, String listValues) throws IOException, QueryException {
+        Map<String, String[]> params = new HashMap<>();
+        params.put("outputformat", new String[] { "json" });
+        if (listValues != null)
+            params.put("listvalues", new String[] { listValues });
         if (userId != null)
             params.put("userid", new String[] { userId });
-        return handler.makeRequest(params);
+        // NOTE: not makeRequest(), we want to treat 401 as an error here
+        try (Reader json = handler.makeRequestReader(params)) {
+            return IOUtils.toString(json);
+        }
     }
 
     @Override
@@ -370,6 +956,21 @@ public class MainServlet extends HttpServlet {
     }
 
     private void processRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException {
+        // Counted until the response is complete, so prefetching can back off while we're busy, see canPrefetch()
+        activeRequests.incrementAndGet();
+        boolean completesAsync = false;
+        try {
+            completesAsync = handleRequest(request, response);
+        } finally {
+            if (!completesAsync)
+                activeRequests.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if the request is completed asynchronously, and will be counted as done by its {@link AsyncRequestListener}
+     */
+    private boolean handleRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException {
 
         try {
             request.setCharacterEncoding("utf-8");
@@ -437,15 +1038,135 @@ public class MainServlet extends HttpServlet {
                 throw new ServletException(e);
             }
 
-            return;
+            return false;
+        }
+
+        if (isDevMode() && request.getParameter("reloadTemplates") != null) {
+            reloadTemplates();
         }
 
         br.init(request, response, this, corpus, pathParameters);
+
+        // Hand the wait for blacklab-server to our own threads, so the container thread can serve other requests in the meantime.
+        if (br.isSlow() && asyncExecutor != null && request.isAsyncSupported()) {
+            AsyncContext async = request.startAsync();
+            AtomicBoolean finished = new AtomicBoolean(); // set by whoever completes the request: the task, or the timeout
+            AtomicReference<Future<?>> task = new AtomicReference<>();
+            async.setTimeout(asyncTimeoutMs);
+            async.addListener(new AsyncRequestListener(finished, task));
+            try {
+                task.set(asyncExecutor.submit(() -> completeAsync(br, async, finished)));
+            } catch (RejectedExecutionException e) {
+                // Too many slow requests waiting already, process on this thread instead of failing
+                completeAsync(br, async, finished);
+            }
+            return true;
+        }
+
         try {
             br.completeRequest();
         } catch (IOException e) {
             throw new ServletException(e);
         }
+        return false;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), which only exists on Java 21 and later.
+     *
+     * @return the executor, or empty on older versions of Java
+     */
+    private static Optional<ExecutorService> newVirtualThreadExecutor() {
+        try {
+            return Optional.of((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        } catch (ReflectiveOperationException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Complete a response outside the container thread, and then the async request.
+     * As the container no longer handles our exceptions, errors are logged and sent here.
+     * Does nothing more once the request has timed out, as the response then belongs to the container again.
+     */
+    private void completeAsync(BaseResponse br, AsyncContext async, AtomicBoolean finished) {
+        try {
+            br.completeRequest();
+        } catch (Exception e) {
+            if (finished.get())
+                return; // timed out, this is the result of being cancelled
+            String uri = ((HttpServletRequest) async.getRequest()).getRequestURI();
+            // Refused while blacklab-server is down: expected, and the circuit breaker already logged why
+            Throwable refused = e;
+            while (refused != null && !(refused instanceof CircuitBreaker.OpenException))
+                refused = refused.getCause();
+            if (refused != null)
+                logger.warn("Not processing request {}: {}", uri, refused.getMessage());
+            else
+                logger.error("Error processing request {}", uri, e);
+
+            HttpServletResponse response = (HttpServletResponse) async.getResponse();
+            if (!response.isCommitted()) {
+                try {
+                    response.sendError(refused != null ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                } catch (IOException | IllegalStateException ex) {
+                    // client is gone, nothing left to do
+                }
+            }
+        } finally {
+            if (finished.compareAndSet(false, true))
+                async.complete();
+        }
+    }
+
+    /**
+     * Answers a slow request that takes longer than {@link #asyncTimeoutMs} with 504 Gateway Timeout (if nothing was sent yet),
+     * and cancels its task, so it doesn't tie up a thread indefinitely. Counts the request as done once it's complete.
+     */
+    private class AsyncRequestListener implements AsyncListener {
+        private final AtomicBoolean finished;
+
+        private final AtomicReference<Future<?>> task;
+
+        AsyncRequestListener(AtomicBoolean finished, AtomicReference<Future<?>> task) {
+            this.finished = finished;
+            this.task = task;
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            if (!finished.compareAndSet(false, true))
+                return; // completed just now
+            AsyncContext async = event.getAsyncContext();
+            logger.warn("Request {} took longer than {}s, giving up", ((HttpServletRequest) async.getRequest()).getRequestURI(), asyncTimeoutMs / 1000);
+            Future<?> running = task.get();
+            if (running != null)
+                running.cancel(true);
+            HttpServletResponse response = (HttpServletResponse) async.getResponse();
+            try {
+                if (!response.isCommitted())
+                    response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            } catch (IOException | IllegalStateException e) {
+                // client is gone, nothing left to do
+            } finally {
+                async.complete();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            activeRequests.decrementAndGet();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            // the task finds out when writing the response
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // nothing to do
+        }
     }
 
     /**
@@ -465,6 +1186,19 @@ public class MainServlet extends HttpServlet {
      * @return the file, if found
      */
     public final Optional<File> getProjectFile(String corpus, String filePath) {
+        // User corpora don't have their own directory, so they all resolve the same as no corpus at all
+        String corpusDir = corpus == null || isUserCorpus(corpus) ? "" : corpus;
+        return projectFiles.get(Arrays.asList(corpusDir, filePath));
+    }
+
+    /**
+     * Find a project file on disk, see {@link #getProjectFile(String, String)}.
+     *
+     * @param key [corpus directory or "", file path]
+     */
+    private Optional<File> resolveProjectFile(List<String> key) {
+        String corpus = key.get(0);
+        String filePath = key.get(1);
         Optional<Path> dataDir = getIfValid(adminProps.getProperty(PROP_DATA_PATH));
 
         // Path the file in the corpus' data directory, only when a valid non-user corpus
@@ -494,7 +1228,139 @@ public class MainServlet extends HttpServlet {
                 }
             });
 
-        return Optional.ofNullable(file);
+        // Only files, never directories, so callers don't have to check (and touch the filesystem) again
+        return Optional.ofNullable(file).filter(File::isFile);
+    }
+
+    /**
+     * Forget the resolved project files that may have been affected by a change in the data dir.
+     *
+     * @param dataDir the data dir
+     * @param changed the changed file or directory, the data dir itself if everything may have changed
+     */
+    private void onDataDirChanged(Path dataDir, Path changed) {
+        String dir = changed.equals(dataDir) ? null : dataDir.relativize(changed).getName(0).toString();
+        logger.debug("Change in data dir: {}", changed);
+
+        // the defaults are used by every corpus
+        String corpus = dir == null || dir.equals(adminProps.getProperty(PROP_DATA_DEFAULT)) ? null : dir;
+        invalidateProjectFiles(corpus);
+        scheduleReload(corpus);
+    }
+
+    /**
+     * @param corpus the corpus whose files to forget, null for all corpora
+     */
+    private void invalidateProjectFiles(String corpus) {
+        if (corpus == null)
+            projectFiles.invalidateAll();
+        else
+            projectFiles.invalidateIf(key -> key.get(0).equals(corpus));
+    }
+
+    /**
+     * Reload the files of a corpus shortly, unless that's already scheduled.
+     *
+     * @param corpus the corpus, null for all corpora
+     */
+    private void scheduleReload(String corpus) {
+        String key = corpus == null ? "" : corpus;
+        if (!pendingReloads.add(key))
+            return;
+
+        try {
+            reloadScheduler.schedule(() -> {
+                pendingReloads.remove(key);
+                reloadCorpusFiles(corpus);
+            }, RELOAD_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) { // shutting down
+            pendingReloads.remove(key);
+        }
+    }
+
+    /**
+     * Reload search.xml and the stylesheets of a corpus in the background, and replace them once they're loaded.
+     * Requests are served using the current ones until then. Other corpora are not affected.
+     * Only what has been loaded before is reloaded, the rest will be loaded when it's first needed anyway.
+     *
+     * @param corpus the corpus, null for all corpora (and the pages outside any corpus)
+     * @return completes when everything has been reloaded
+     */
+    private CompletableFuture<Void> reloadCorpusFiles(String corpus) {
+        CompletableFuture<Void> reloaded = corpus == null
+            ? CompletableFuture.allOf(websiteConfigs.refreshIf(k -> true), articleTransformers.refreshIf(k -> true))
+            : CompletableFuture.allOf(websiteConfigs.refresh(corpus), articleTransformers.refreshIf(k -> corpus.equals(k.get(0))));
+
+        return reloaded.whenComplete((r, e) -> {
+            if (e != null)
+                logger.warn("Error reloading configuration for {}: {}", corpus != null ? corpus : "all corpora", e.getMessage());
+            else
+                logger.info("Reloaded configuration for {}", corpus != null ? corpus : "all corpora");
+        });
+    }
+
+    /**
+     * Reload everything for a corpus in the background: the config from blacklab-server, search.xml and the stylesheets.
+     * When reloading everything, the templates are also compiled again.
+     *
+     * @param corpus the corpus, null for all corpora
+     * @return completes when everything has been reloaded
+     */
+    public CompletableFuture<Void> reloadCorpus(String corpus) {
+        if (corpus == null)
+            reloadTemplates();
+        invalidateProjectFiles(corpus);
+
+        CompletableFuture<Void> corpusConfig = corpus == null ? corpusConfigs.refreshIf(k -> true) : corpusConfigs.refresh(corpus);
+        // search.xml is combined with the corpus config, so reload it after the new config is in place (or failed to load)
+        return corpusConfig
+            .handle((r, e) -> e)
+            .thenCompose(e -> reloadCorpusFiles(corpus).thenRun(() -> {
+                if (e != null)
+                    throw new CompletionException(e);
+            }));
+    }
+
+    /**
+     * @return statistics on caches and connections, for the admin page
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", ready);
+        stats.put("corpusConfigs", corpusConfigs.size());
+        stats.put("websiteConfigs", websiteConfigs.size());
+        stats.put("stylesheets", articleTransformers.size());
+        stats.put("staleStylesheetsServed", articleTransformers.staleHits());
+        stats.put("templates", templates.size());
+        stats.put("renderedPages", renderedPages.size());
+        stats.put("renderedPagesBytes", renderedPages.weight());
+        if (articles != null) {
+            stats.put("articles", articles.size());
+            stats.put("articlesBytes", articles.weight());
+            stats.put("articleHits", articles.hits());
+            stats.put("articleMisses", articles.misses());
+            stats.put("staleArticlesServed", articles.staleHits());
+        }
+        if (prefetchedArticles != null) {
+            stats.put("prefetchedArticles", prefetchedArticles.size());
+            stats.put("prefetchedArticleHits", prefetchedArticles.hits());
+            stats.put("prefetchQueue", ((ThreadPoolExecutor) prefetchExecutor).getQueue().size());
+        }
+        stats.put("compressedStaticFiles", compressedStaticFiles.size());
+        stats.put("projectFiles", projectFiles.size());
+        stats.put("watchingDataDir", dataDirWatcher != null);
+        stats.put("blsConnections", QueryServiceHandler.getConnectionPool().getStats());
+        CircuitBreaker breaker = QueryServiceHandler.getCircuitBreaker();
+        if (breaker != null) {
+            stats.put("blsState", breaker.getState().name());
+            stats.put("blsRetryIn", breaker.getRetryIn());
+            stats.put("blsRequestsRefused", breaker.getRefused());
+        }
+        stats.put("activeRequests", activeRequests.get());
+        stats.put("virtualThreads", !(requestExecutor instanceof ThreadPoolExecutor));
+        stats.put("asyncQueue", asyncExecutor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) asyncExecutor).getQueue().size() : 0);
+        stats.put("requestQueue", requestExecutor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) requestExecutor).getQueue().size() : 0);
+        return stats;
     }
 
     private static Optional<Path> getIfValid(String path) {
@@ -545,58 +1411,64 @@ public class MainServlet extends HttpServlet {
      *
      * @param corpus
      * @param corpusDataFormat
-     * @return the xsl transformer to use for transformation, note that this is always the same transformer.
+     * @return the xsl transformer to use for transformation, shared until the stylesheet changes.
+     * @throws RuntimeException when blacklab-server can't be reached, and we have no earlier version of the stylesheet
      */
     public Optional<XslTransformer> getStylesheet(String corpus, String corpusDataFormat) {
-        // @formatter:off
-
-        // need to use corpus name in the cache map
+        // need to use corpus name in the cache key
         // because corpora can define their own xsl files in their own data directory
         // (this is common with - but not exclusive to - metadata stylesheets, that are all named "article_meta.xsl")
-        String key = corpus + "_" + corpusDataFormat;
-        return articleTransformers.computeIfAbsent(key, __ -> {
-            Optional<File> file = getProjectFile(corpus, "article_" + corpusDataFormat + ".xsl");
-
-            XslTransformer trans = file.map(f -> {
-                try { return new XslTransformer(f);}
-                catch (TransformerConfigurationException | FileNotFoundException e) {
-                    logger.debug("Error loading stylesheet {} for corpus {} : {}", file.get(), corpus, e.getMessage());
-                    return null;
-                }
-            })
-            .orElseGet(() -> {
-                logger.debug("Attempting to get xsl {} for corpus {} from blacklab...", corpusDataFormat, corpus);
-
-                try {
-                    QueryServiceHandler handler = new QueryServiceHandler(getWebserviceUrl(null) + "input-formats/" + corpusDataFormat + "/xslt");
-                    Map<String, String[]> params = new HashMap<>();
-                    String sheet = handler.makeRequest(params);
-                    return new XslTransformer(sheet, new StringReader(sheet));
-                } catch (TransformerConfigurationException | IOException | QueryException e) {
-                    logger.debug("Error getting or using stylesheet for format {} from blacklab : {}", corpusDataFormat, e.getMessage());
-                    return null;
-                }
-            });
+        return articleTransformers.get(Arrays.asList(corpus, corpusDataFormat));
+    }
 
-            return Optional.ofNullable(trans);
+    /**
+     * Load and compile the stylesheet, see {@link #getStylesheet(String, String)}.
+     * @param key list of [corpus, corpusDataFormat]
+     */
+    private Optional<XslTransformer> loadStylesheet(List<String> key) {
+        // @formatter:off
+        String corpus = key.get(0);
+        String corpusDataFormat = key.get(1);
+        Optional<File> file = getProjectFile(corpus, "article_" + corpusDataFormat + ".xsl");
+
+        XslTransformer trans = file.map(f -> {
+            try { return new XslTransformer(f);}
+            catch (TransformerConfigurationException | FileNotFoundException e) {
+                logger.debug("Error loading stylesheet {} for corpus {} : {}", file.get(), corpus, e.getMessage());
+                return null;
+            }
+        })
+        .orElseGet(() -> {
+            logger.debug("Attempting to get xsl {} for corpus {} from blacklab...", corpusDataFormat, corpus);
+
+            String url = getWebserviceUrl(null) + "input-formats/" + corpusDataFormat + "/xslt";
+            QueryServiceHandler handler = new QueryServiceHandler(url);
+            try (Reader sheet = handler.makeRequestReader(new HashMap<>())) {
+                return new XslTransformer(url, sheet);
+            } catch (QueryException e) {
+                // Don't remember a stylesheet as missing because blacklab-server had a problem, and keep using the one we had.
+                if (e.getHttpStatusCode() >= 500)
+                    throw new RuntimeException("blacklab-server returned " + e.getHttpStatusCode() + " " + e.getReason(), e);
+                logger.debug("Error getting stylesheet for format {} from blacklab : {}", corpusDataFormat, e.getMessage());
+                return null;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } catch (TransformerConfigurationException e) {
+                logger.debug("Error using stylesheet for format {} from blacklab : {}", corpusDataFormat, e.getMessage());
+                return null;
+            }
         });
+
+        return Optional.ofNullable(trans);
         // @formatter:on
     }
 
-    public InputStream getHelpPage(String corpus) {
-        try {
-            return new FileInputStream(getProjectFile(corpus, "help.inc").get());
-        } catch (FileNotFoundException e) {
-            throw new IllegalStateException(e); // this file always exists
-        }
+    public File getHelpPage(String corpus) {
+        return getProjectFile(corpus, "help.inc").orElseThrow(() -> new IllegalStateException("No help.inc, and no default in jar either"));
     }
 
-    public InputStream getAboutPage(String corpus) {
-        try {
-            return new FileInputStream(getProjectFile(corpus, "about.inc").get());
-        } catch (FileNotFoundException e) {
-            throw new IllegalStateException(e); // this file always exists
-        }
+    public File getAboutPage(String corpus) {
+        return getProjectFile(corpus, "about.inc").orElseThrow(() -> new IllegalStateException("No about.inc, and no default in jar either"));
     }
 
     /**
@@ -628,10 +1500,99 @@ public class MainServlet extends HttpServlet {
         return url;
     }
 
+    /**
+     * Get a rendered page, or render it if there is none for the key yet.
+     *
+     * @param key everything the page depends on
+     * @param render renders the page
+     * @return the page
+     */
+    public RenderedPage getRenderedPage(List<Object> key, Function<List<Object>, RenderedPage> render) {
+        return renderedPages.get(key, render);
+    }
+
+    /**
+     * Get a transformed document, or retrieve and transform it if it isn't in memory yet (or when keeping documents is disabled).
+     *
+     * @param key everything the transformed document depends on
+     * @param load retrieves and transforms the document, exceptions are passed on and the result is then not kept
+     * @return the document
+     */
+    public ArticleResponse.Article getArticle(List<Object> key, Function<List<Object>, ArticleResponse.Article> load) {
+        Function<List<Object>, ArticleResponse.Article> loadOrTakePrefetched = k -> {
+            ArticleResponse.Article prefetched = prefetchedArticles != null ? prefetchedArticles.getIfPresent(k) : null;
+            if (prefetched == null)
+                return load.apply(k);
+            prefetchedArticles.invalidate(k);
+            return prefetched;
+        };
+        return articles != null ? articles.get(key, loadOrTakePrefetched) : loadOrTakePrefetched.apply(key);
+    }
+
+    /** @return is prefetching enabled, and are we quiet enough to spare the work right now? */
+    public boolean canPrefetch() {
+        return prefetchExecutor != null && activeRequests.get() <= prefetchMaxActiveRequests;
+    }
+
+    /**
+     * Retrieve and transform a document in the background, so it's ready when it's requested.
+     * Does nothing when prefetching is disabled, when we already have the document, or when there are too many prefetches waiting.
+     *
+     * @param key everything the transformed document depends on, see {@link #getArticle(List, Function)}
+     * @param load retrieves and transforms the document, should not use the request executor
+     */
+    public void prefetchArticle(List<Object> key, Function<List<Object>, ArticleResponse.Article> load) {
+        if (!canPrefetch() || (articles != null && articles.contains(key)))
+            return;
+
+        prefetchExecutor.execute(() -> {
+            try {
+                prefetchedArticles.get(key, load);
+            } catch (RuntimeException e) {
+                logger.debug("Prefetching {} failed: {}", key.subList(0, 2), e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Get a compressed static file, or compress it if it isn't in memory yet.
+     *
+     * @param key [path, size, modification time] of the file
+     * @param compress compresses the file
+     * @return the compressed file, must not be modified
+     */
+    public byte[] getCompressedStaticFile(List<Object> key, Function<List<Object>, byte[]> compress) {
+        return compressedStaticFiles.get(key, compress);
+    }
+
+    /**
+     * @return bounded executor for retrieving and processing independent parts of a response in parallel.
+     */
+    public ExecutorService getRequestExecutor() {
+        return requestExecutor;
+    }
+
     public String getGoogleAnalyticsKey() {
         return adminProps.getProperty(PROP_ANALYTICS_KEY, "");
     }
 
+    /**
+     * Get a numeric setting from the admin properties.
+     * Falls back to the default value if the setting is not a valid number.
+     *
+     * @param name name of the property, must have a default value
+     * @return the value
+     */
+    public int getIntProperty(String name) {
+        String value = adminProps.getProperty(name);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Setting {} has invalid value '{}', using default", name, value);
+            return Integer.parseInt(getDefaultProps(contextPath).getProperty(name));
+        }
+    }
+
     public int getWordsToShow() {
         try {
             return Integer.parseInt(adminProps.getProperty(PROP_DOCUMENT_PAGE_LENGTH));
@@ -1,10 +1,7 @@
 package nl.inl.corpuswebsite.response;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
 
 import nl.inl.corpuswebsite.BaseResponse;
 
@@ -16,13 +13,9 @@ public class AboutResponse extends BaseResponse {
     }
 
     @Override
-    protected void completeRequest() {
-        try (InputStream is = servlet.getAboutPage(corpus)) {
-            context.put("content", StringUtils.join(IOUtils.readLines(is, "utf-8"), "\n"));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        displayHtmlTemplate(servlet.getTemplate("contentpage"));
+    protected void completeRequest() throws IOException {
+        // The file is only read when the page has to be rendered (again)
+        File file = servlet.getAboutPage(corpus);
+        displayCachedHtmlTemplate("contentpage", () -> context.put("content", readContent(file)), file, file.lastModified(), file.length());
     }
 }
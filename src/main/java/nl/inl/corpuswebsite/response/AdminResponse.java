@@ -0,0 +1,113 @@
+package nl.inl.corpuswebsite.response;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import nl.inl.corpuswebsite.BaseResponse;
+import nl.inl.corpuswebsite.MainServlet;
+
+/**
+ * Administrative actions, only available when an admin token is configured, and the request carries it
+ * (as "Authorization: Bearer &lt;token&gt;").
+ *
+ * <pre>
+ * - GET  [corpus/]admin?action=stats  - statistics on caches and connections, as json
+ * - POST [corpus/]admin?action=reload - reload the corpus' configuration in the background, or that of all corpora without a corpus
+ * </pre>
+ */
+public class AdminResponse extends BaseResponse {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    public AdminResponse() {
+        super(false);
+    }
+
+    @Override
+    public void init(HttpServletRequest request, HttpServletResponse response, MainServlet servlet, String corpus, List<String> pathParameters) {
+        // Don't call super(), we don't want to load anything for the corpus we may be about to reload
+        this.request = request;
+        this.response = response;
+        this.servlet = servlet;
+        this.corpus = corpus;
+        this.pathParameters = pathParameters;
+    }
+
+    @Override
+    protected void completeRequest() throws IOException {
+        response.setHeader("Cache-Control", "no-store");
+
+        String token = servlet.getAdminProps().getProperty(MainServlet.PROP_ADMIN_TOKEN, "").trim();
+        if (token.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!isAuthorized(token)) {
+            response.setHeader("WWW-Authenticate", "Bearer");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        String action = getParameter("action", "stats");
+        switch (action) {
+            case "stats":
+                writeJson(servlet.getStats());
+                break;
+            case "reload":
+                if (!request.getMethod().equals("POST")) {
+                    response.setHeader("Allow", "POST");
+                    response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                    return;
+                }
+                logger.info("Reload of {} requested from {}", corpus != null ? corpus : "all corpora", request.getRemoteAddr());
+                servlet.reloadCorpus(corpus);
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                break;
+            default:
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown action " + action);
+        }
+    }
+
+    /** Compare in constant time, so the token can't be guessed one character at a time by measuring response times */
+    private boolean isAuthorized(String token) {
+        String header = request.getHeader("Authorization");
+        if (header == null || !header.startsWith("Bearer "))
+            return false;
+
+        return MessageDigest.isEqual(
+            header.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8),
+            token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeJson(Map<String, Object> values) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("utf-8");
+        try (JsonGenerator json = JSON.createGenerator(response.getWriter())) {
+            json.writeStartObject();
+            for (Map.Entry<String, Object> e : values.entrySet()) {
+                json.writeFieldName(e.getKey());
+                Object value = e.getValue();
+                if (value instanceof Boolean)
+                    json.writeBoolean((Boolean) value);
+                else if (value instanceof Long || value instanceof Integer)
+                    json.writeNumber(((Number) value).longValue());
+                else if (value instanceof Number)
+                    json.writeNumber(((Number) value).doubleValue());
+                else if (value == null)
+                    json.writeNull();
+                else
+                    json.writeString(value.toString());
+            }
+            json.writeEndObject();
+        }
+    }
+}
@@ -1,16 +1,27 @@
 package nl.inl.corpuswebsite.response;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.TransformerException;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import nl.inl.corpuswebsite.BaseResponse;
 import nl.inl.corpuswebsite.MainServlet;
@@ -26,6 +37,9 @@ public class ArticleResponse extends BaseResponse {
     /** Matches xml open/void tags &lt;namespace:tagname attribute="value"/&gt; excluding hl tags, as those are inserted by blacklab and can result in false positives */
     private static final Pattern XML_TAG_PATTERN = Pattern.compile("<([\\w]+:)?((?!(hl|blacklabResponse|[xX][mM][lL])\\b)[\\w.]+)(\\s+[\\w\\.]+=\"[\\w\\s,]*\")*\\/?>");
 
+    /** How much of a document to look at to decide whether it's xml, before streaming it into a stylesheet */
+    private static final int SNIFF_LENGTH = 4096;
+
     private static final Pattern CAPTURE_DOCLENGTH_PATTERN = Pattern.compile("<lengthInTokens>\\s*(\\d+)\\s*<\\/lengthInTokens>");
 
 
@@ -52,6 +66,11 @@ public class ArticleResponse extends BaseResponse {
         super(true);
     }
 
+    @Override
+    public boolean isSlow() {
+        return true; // retrieving and transforming the document can take a while
+    }
+
     @Override
     protected void completeRequest() throws IOException {
         if (pathParameters.size() != 1) {
@@ -65,8 +84,16 @@ public class ArticleResponse extends BaseResponse {
             return;
         }
         String formatIdentifier = servlet.getCorpusConfig(corpus).getCorpusDataFormat();
-        Optional<XslTransformer> articleStylesheet = servlet.getStylesheet(corpus, formatIdentifier);
-        Optional<XslTransformer> metadataStylesheet = servlet.getStylesheet(corpus, "meta");
+        ExecutorService executor = servlet.getRequestExecutor();
+
+        // The stylesheets are part of what we need to know to find a transformed document in memory, resolve them both at once.
+        // Stylesheet errors are handled within getStylesheet, but make sure we never leave a connection dangling in case of a bug.
+        CompletableFuture<Optional<XslTransformer>> articleStylesheetFuture = CompletableFuture
+            .supplyAsync(() -> servlet.getStylesheet(corpus, formatIdentifier), executor)
+            .exceptionally(e -> Optional.empty());
+        CompletableFuture<Optional<XslTransformer>> metadataStylesheetFuture = CompletableFuture
+            .supplyAsync(() -> servlet.getStylesheet(corpus, "meta"), executor)
+            .exceptionally(e -> Optional.empty());
 
         QueryServiceHandler articleContentRequest = new QueryServiceHandler(servlet.getWebserviceUrl(corpus) + "docs/" + pid + "/contents");
         QueryServiceHandler articleMetadataRequest = new QueryServiceHandler(servlet.getWebserviceUrl(corpus) + "docs/" + pid);
@@ -74,6 +101,8 @@ public class ArticleResponse extends BaseResponse {
         // get parameter values
         String query = this.getParameter("query", "");
         String userId = MainServlet.getCorpusOwner(corpus);
+        int wordStart = getWordStart();
+        int wordEnd = getWordEnd(wordStart, getParameter("wordend", servlet.getWordsToShow()));
 
         Map<String, String[]> contentRequestParameters = new HashMap<>();
         Map<String, String[]> metadataRequestParameters = new HashMap<>();
@@ -91,96 +120,257 @@ public class ArticleResponse extends BaseResponse {
         // since when you only get a subset of the document without begin and ending, the top of the xml tree will be missing
         // and xslt will not match anything (or match the wrong elements)
         // so blacklab will have to walk the tree and insert those tags in some manner.
-        contentRequestParameters.put("wordstart", new String[] { Integer.toString(getWordStart()) });
-        contentRequestParameters.put("wordend", new String[] { Integer.toString(getWordEnd()) });
+        contentRequestParameters.put("wordstart", new String[] { Integer.toString(wordStart) });
+        contentRequestParameters.put("wordend", new String[] { Integer.toString(wordEnd) });
+
+        Map<String, String> xsltParameters = new HashMap<>();
+        xsltParameters.put("contextRoot", servlet.getServletContext().getContextPath());
+        xsltParameters.putAll(servlet.getWebsiteConfig(corpus).getXsltParameters());
+
+        Optional<XslTransformer> articleStylesheet = articleStylesheetFuture.join();
+        Optional<XslTransformer> metadataStylesheet = metadataStylesheetFuture.join();
+        // A changed stylesheet is a new object, so documents transformed with the old one are no longer found
+        List<Object> key = Arrays.asList(corpus, pid, query, wordStart, wordEnd, articleStylesheet, metadataStylesheet, xsltParameters);
 
         context.put("docId", pid);
 
+        // While blacklab-server is working, let the browser load the scripts and stylesheets
+        preloadScripts.add(servlet.getAdminProps().getProperty(MainServlet.PROP_JSPATH) + "/article.js?_" + servlet.getWarBuildTime().hashCode());
+        flushHeader();
+
+        Article article;
         try {
-            // NOTE: document not necessarily xml, though it might have some <hl/> tags injected to mark query hits
-            String documentContents = articleContentRequest.makeRequest(contentRequestParameters);
-            if (documentContents.contains("NOT_AUTHORIZED")) {
-                context.put("article_content", "content restricted");
+            article = servlet.getArticle(key, k -> loadArticle(executor, articleStylesheet, metadataStylesheet, xsltParameters,
+                articleContentRequest, contentRequestParameters, articleMetadataRequest, metadataRequestParameters));
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof QueryException) {
+                QueryException qe = (QueryException) e.getCause();
+                if (qe.getHttpStatusCode() == HttpServletResponse.SC_NOT_FOUND) {
+                    displayError(HttpServletResponse.SC_NOT_FOUND, "Document not found");
+                } else {
+                    displayError(HttpServletResponse.SC_BAD_REQUEST, qe.getMessage());
+                }
+                return;
+            } else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             } else {
-                context.put("article_content",
-                    articleStylesheet.map(t -> {  // probably xml, or we wouldn't have a stylesheet
-                        t.clearParameters();
-                        t.addParameter("contextRoot", servlet.getServletContext().getContextPath());
-                        servlet.getWebsiteConfig(corpus).getXsltParameters().forEach(t::addParameter);
-
-                        try {
-                            return t.transform(documentContents);
-                        } catch (TransformerException e) {
-                            return null; // proceed to orElseGet
-                        }
-                    })
-                    .orElseGet(() -> {
-                        if (!XML_TAG_PATTERN.matcher(documentContents).find()) {
-                            // not xml, just replace the inserted hl tags and pass on
-                           return "<pre>" + StringUtils.replaceEach(documentContents,
-                                                           new String[] {"<hl>", "</hl>"},
-                                                           new String[] { "<span class=\"hl\">", "</span>"}) +
-                           "</pre>";
-                        }
-
-                        // seems to contain at least one xml opening/self-closing tag, process using default xslt
-                        try {
-                            return defaultTransformer.transform(documentContents);
-                        } catch (TransformerException e) {
-                            // Document seems to be xml, but probably not valid, we tried...
-                            return "Could not prepare document for viewing (it might be malformed xml) - " + e.getMessage();
-                        }
-                    })
-                );
+                throw e;
             }
+        }
+
+        context.put("article_content", article.getContent());
+        if (article.getDocLength() >= 0) {
+            int docLength = article.getDocLength();
+            int pageSize = servlet.getWordsToShow();
+            String q = (query != null && !query.isEmpty()) ? ("&query="+esc.url(query)) : "";
+
+            if (wordStart > 0) {
+                context.put("previous_page", "?wordstart="+Math.max(0, wordStart-pageSize)+"&wordend="+wordStart+(q.isEmpty() ? "" : q));
+            }
+            if (wordEnd < docLength) {
+                context.put("next_page", "?wordstart="+(wordEnd)+"&wordend="+Math.min(wordEnd+pageSize, docLength)+(q.isEmpty() ? "" : q));
+            }
+        }
+        context.put("article_meta", article.getMetadata());
 
-            context.put("article_meta", metadataStylesheet
+        // display template
+        displayHtmlTemplate(servlet.getTemplate("article"));
+
+        // The reader will probably want the next page, get it ready while they're reading this one.
+        if (article.getDocLength() > wordEnd && servlet.canPrefetch()) {
+            int nextStart = wordEnd;
+            int nextEnd = getWordEnd(nextStart, Math.min(wordEnd + servlet.getWordsToShow(), article.getDocLength()));
+            Map<String, String[]> nextContentRequestParameters = new HashMap<>(contentRequestParameters);
+            nextContentRequestParameters.put("wordstart", new String[] { Integer.toString(nextStart) });
+            nextContentRequestParameters.put("wordend", new String[] { Integer.toString(nextEnd) });
+            List<Object> nextKey = Arrays.asList(corpus, pid, query, nextStart, nextEnd, articleStylesheet, metadataStylesheet, xsltParameters);
+
+            // Everything runs on the prefetch thread, so we don't take threads from other requests
+            servlet.prefetchArticle(nextKey, k -> loadArticle(Runnable::run, articleStylesheet, metadataStylesheet, xsltParameters,
+                articleContentRequest, nextContentRequestParameters, articleMetadataRequest, metadataRequestParameters));
+        }
+    }
+
+    /**
+     * Retrieve and transform the document contents and metadata.
+     *
+     * The contents and metadata are retrieved in parallel, and the contents are passed to the stylesheet straight from the response.
+     * Restricted contents are replaced by a message, missing metadata is left out.
+     *
+     * @return the transformed document
+     * @throws CompletionException when the contents can't be retrieved, with the QueryException or IOException as cause
+     */
+    private static Article loadArticle(Executor executor, Optional<XslTransformer> articleStylesheet, Optional<XslTransformer> metadataStylesheet,
+        Map<String, String> xsltParameters, QueryServiceHandler articleContentRequest, Map<String, String[]> contentRequestParameters,
+        QueryServiceHandler articleMetadataRequest, Map<String, String[]> metadataRequestParameters) {
+
+        CompletableFuture<String> articleContent = CompletableFuture
+            .supplyAsync(() -> {
+                try {
+                    return getArticleContent(articleContentRequest.makeRequestReader(contentRequestParameters), articleStylesheet, xsltParameters);
+                } catch (IOException | QueryException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+
+        // Metadata is optional, don't fail the page when we can't get it.
+        CompletableFuture<String> articleMetadata = CompletableFuture
+            .supplyAsync(() -> {
+                try {
+                    return articleMetadataRequest.makeRequest(metadataRequestParameters);
+                } catch (IOException | QueryException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor)
+            .exceptionally(e -> null);
+        CompletableFuture<String> articleMetadataHtml = articleMetadata
+            .thenApplyAsync(meta -> metadataStylesheet
+                .filter(t -> meta != null)
                 .map(t -> {
                     try {
-                        String meta = articleMetadataRequest.makeRequest(metadataRequestParameters);
-                        Matcher m = CAPTURE_DOCLENGTH_PATTERN.matcher(meta);
-                        if (m.find()) {
-                            int docLength = Integer.parseInt(m.group(1));
-                            int pageStart = getWordStart();
-                            int pageEnd = getWordEnd();
-                            int pageSize = servlet.getWordsToShow();
-                            String q = (query != null && !query.isEmpty()) ? ("&query="+esc.url(query)) : "";
-
-                            if (pageStart > 0) {
-                                context.put("previous_page", "?wordstart="+Math.max(0, pageStart-pageSize)+"&wordend="+pageStart+(q.isEmpty() ? "" : q));
-                            }
-                            if (pageEnd < docLength) {
-                                context.put("next_page", "?wordstart="+(pageEnd)+"&wordend="+Math.min(pageEnd+pageSize, docLength)+(q.isEmpty() ? "" : q));
-                            }
-                        }
                         return t.transform(meta);
-                    } catch (TransformerException | IOException | QueryException e) {
+                    } catch (TransformerException e) {
                         return null;
                     }
                 })
-                .orElse("")
-            );
-        } catch (QueryException e) {
-            if (e.getHttpStatusCode() == 404) {
-                response.sendError(HttpServletResponse.SC_NOT_FOUND);
-                return;
-            }
+                .orElse(""), executor);
 
-            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
-            return;
+        String content;
+        try {
+            content = articleContent.join();
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof QueryException && ((QueryException) e.getCause()).getHttpStatusCode() == HttpServletResponse.SC_UNAUTHORIZED))
+                throw e;
+            content = "content restricted";
         }
 
+        String meta = articleMetadata.join();
+        Matcher m = meta != null ? CAPTURE_DOCLENGTH_PATTERN.matcher(meta) : null;
+        int docLength = m != null && m.find() ? Integer.parseInt(m.group(1)) : -1;
+        return new Article(content, articleMetadataHtml.join(), docLength);
+    }
 
-        // display template
+    /**
+     * Send an error, or when the header has already been sent (and so the status can't be changed), show it in the page.
+     *
+     * @param status http status
+     * @param message (optional) message
+     */
+    private void displayError(int status, String message) throws IOException {
+        if (!isHeaderSent()) {
+            response.sendError(status, message);
+            return;
+        }
+
+        context.put("article_content", "<div class=\"alert alert-danger\">" + esc.html(message != null ? message : "Error " + status) + "</div>");
+        context.put("article_meta", "");
         displayHtmlTemplate(servlet.getTemplate("article"));
     }
 
+    /**
+     * Transform the document contents to html.
+     *
+     * When there is a stylesheet and the document starts out like xml, the response from blacklab-server is parsed directly by
+     * the XSLT processor, instead of being read into a String first. This saves a copy of the document, but the processor still
+     * builds a tree of the entire document in memory before transforming it, so memory use still grows with the size of the document.
+     * Other documents (such as plain text) are read into a String and handled as before.
+     *
+     * The stream can't be read again, so when the stylesheet fails on a document that looked like xml, the error is shown
+     * instead of trying the default stylesheet (which would most likely fail on the same malformed xml).
+     *
+     * @param documentContents the (unread) document contents, will be closed
+     * @param articleStylesheet
+     * @param xsltParameters parameters for the stylesheet
+     * @return the html
+     * @throws IOException
+     */
+    private static String getArticleContent(Reader documentContents, Optional<XslTransformer> articleStylesheet, Map<String, String> xsltParameters)
+        throws IOException {
+        String contents;
+        try (BufferedReader r = new BufferedReader(documentContents, SNIFF_LENGTH)) {
+            if (articleStylesheet.isPresent() && startsAsXml(r)) {
+                try {
+                    return articleStylesheet.get().streamTransform(r, new StringWriter(), xsltParameters).toString();
+                } catch (TransformerException e) {
+                    return "Could not prepare document for viewing (it might be malformed xml) - " + e.getMessage();
+                }
+            }
+            contents = IOUtils.toString(r);
+        }
+
+        // NOTE: document not necessarily xml, though it might have some <hl/> tags injected to mark query hits
+        if (!XML_TAG_PATTERN.matcher(contents).find()) {
+            // not xml, just replace the inserted hl tags and pass on
+            return "<pre>" + StringUtils.replaceEach(contents,
+                                            new String[] {"<hl>", "</hl>"},
+                                            new String[] { "<span class=\"hl\">", "</span>"}) +
+            "</pre>";
+        }
+
+        // seems to contain at least one xml opening/self-closing tag, process using default xslt
+        try {
+            return defaultTransformer.transform(contents);
+        } catch (TransformerException e) {
+            // Document seems to be xml, but probably not valid, we tried...
+            return "Could not prepare document for viewing (it might be malformed xml) - " + e.getMessage();
+        }
+    }
+
+    /**
+     * Does the document contain an xml tag near the start? Leaves the reader where it was.
+     * Documents that only contain tags further on are read into a String, where the whole document is checked.
+     */
+    private static boolean startsAsXml(BufferedReader r) throws IOException {
+        char[] start = new char[SNIFF_LENGTH];
+        r.mark(SNIFF_LENGTH);
+        int n = 0;
+        for (int read = 0; read != -1 && n < start.length; read = r.read(start, n, start.length - n))
+            n += read;
+        r.reset();
+        return XML_TAG_PATTERN.matcher(CharBuffer.wrap(start, 0, n)).find();
+    }
+
     private int getWordStart() {
         return Math.max(0, getParameter("wordstart", 0));
     }
 
-    private int getWordEnd() {
+    private int getWordEnd(int wordStart, int wordEndParameter) {
         int maxWordCount = servlet.getWordsToShow();
-        return getWordStart() + Math.min(Math.max(0, getParameter("wordend", maxWordCount)), maxWordCount);
+        return wordStart + Math.min(Math.max(0, wordEndParameter), maxWordCount);
+    }
+
+    /** A transformed document, as shown on the page */
+    public static final class Article {
+        private final String content;
+
+        private final String metadata;
+
+        private final int docLength;
+
+        public Article(String content, String metadata, int docLength) {
+            this.content = content;
+            this.metadata = metadata != null ? metadata : "";
+            this.docLength = docLength;
+        }
+
+        /** @return the contents as html */
+        public String getContent() {
+            return content;
+        }
+
+        /** @return the metadata as html, empty when there is no metadata (stylesheet) */
+        public String getMetadata() {
+            return metadata;
+        }
+
+        /** @return the length of the document in tokens, -1 if unknown */
+        public int getDocLength() {
+            return docLength;
+        }
+
+        /** @return approximate size in memory, in bytes */
+        public long getSize() {
+            return 2L * (content.length() + metadata.length()) + 64;
+        }
     }
 }
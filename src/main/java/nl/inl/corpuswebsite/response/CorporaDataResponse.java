@@ -1,14 +1,30 @@
 package nl.inl.corpuswebsite.response;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -21,6 +37,30 @@ import nl.inl.corpuswebsite.MainServlet;
 
 public class CorporaDataResponse extends BaseResponse {
 
+    /** More ranges than this in a single request are ignored, and the whole file is sent instead */
+    private static final int MAX_RANGES = 16;
+
+    /** Files smaller than this aren't worth compressing on the fly */
+    private static final long MIN_COMPRESS_SIZE = 1024;
+
+    /** Files larger than this aren't compressed on the fly, as the compressed file is kept in memory */
+    private static final long MAX_COMPRESS_SIZE = 1024 * 1024;
+
+    /** Compressible mime types that aren't text/* */
+    private static final Set<String> COMPRESSIBLE_TYPES = new HashSet<>(Arrays.asList(
+        "application/javascript", "application/x-javascript", "application/json", "application/xml",
+        "application/xhtml+xml", "image/svg+xml", "image/x-icon", "application/vnd.ms-fontobject", "font/ttf", "font/otf"));
+
+    private static final Pattern RANGE_SPEC = Pattern.compile("(\\d*)-(\\d*)");
+
+    // @formatter:off
+    /** Request attributes used by Tomcat to send a file directly from the OS */
+    private static final String SENDFILE_SUPPORTED  = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME   = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START      = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END        = "org.apache.tomcat.sendfile.end";
+    // @formatter:on
+
     public CorporaDataResponse() {
         super(false); // allow getting static files without corpus, this normally never happens, but we clear the corpus for /default/ static files
     }
@@ -54,23 +94,326 @@ public class CorporaDataResponse extends BaseResponse {
             String pathString = path.toString();
             Optional<File> file = servlet.getProjectFile(corpus, pathString);
 
-            if (!file.isPresent() || !file.get().isFile()) {
+            if (!file.isPresent()) { // resolved project files are always files
                 response.sendError(HttpServletResponse.SC_NOT_FOUND);
                 return;
             }
 
-            try (InputStream is = new FileInputStream(file.get())) {
-                // Headers must be set before writing the response.
-                String mime = servlet.getServletContext().getMimeType(pathString);
-                response.setHeader("Cache-Control", "public, max-age=604800" /* 7 days */);
-                response.setHeader("Content-Length", Long.toString(file.get().length()));
-                response.setContentType(mime);
+            String mime = servlet.getServletContext().getMimeType(pathString);
+
+            // Headers must be set before writing the response.
+            response.setHeader("Cache-Control", "public, max-age=604800" /* 7 days */);
+            response.setHeader("Vary", "Accept-Encoding");
+            response.setHeader("Accept-Ranges", "bytes");
+
+            // Ranges are always of the uncompressed file
+            if (request.getHeader("Range") == null && canCompress("gzip") && sendCompressed(file.get(), pathString, mime))
+                return;
 
-                IOUtils.copy(is, response.getOutputStream());
+            // Validators, so browsers can check whether their copy is still up to date once it expires
+            long length = file.get().length();
+            long lastModified = file.get().lastModified();
+            String etag = getETag(file.get(), "");
+            if (setValidators(etag, lastModified))
+                return;
+
+            
+            List<Range> ranges = getRanges(etag, lastModified, length);
+            if (ranges == null) {
+                response.setContentLengthLong(length);
+                response.setContentType(mime);
+                if (!request.getMethod().equals("HEAD") && length > 0)
+                    sendFile(file.get(), new Range(0, length - 1));
+            } else if (ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            } else if (ranges.size() == 1) {
+                Range range = ranges.get(0);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", range.toContentRange(length));
+                response.setContentLengthLong(range.length());
+                response.setContentType(mime);
+                if (!request.getMethod().equals("HEAD"))
+                    sendFile(file.get(), range);
+            } else {
+                sendMultipart(file.get(), ranges, mime, length);
             }
         } catch (InvalidPathException e1) { // runtimeException from Path.resolve; when weird paths are being requested
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
     }
+
+    /**
+     * Send the gzipped file if possible: the precompressed file (file.gz) when there is one and it's up to date,
+     * else the file compressed on the fly when it's worth it (see {@link #isCompressible(String, long)}).
+     * The precompressed file is looked up like any other project file, so finding out there is none doesn't cost a file system lookup.
+     *
+     * @param file the file
+     * @param path path of the file, as passed to {@link MainServlet#getProjectFile(String, String)}
+     * @param mime mime type of the file
+     * @return true if a response was sent, false if the uncompressed file should be sent instead.
+     */
+    private boolean sendCompressed(File file, String path, String mime) throws IOException {
+        Optional<File> precompressed = servlet.getProjectFile(corpus, path + ".gz");
+        if (precompressed.isPresent() && precompressed.get().lastModified() >= file.lastModified()) {
+            File gz = precompressed.get();
+            if (setValidators(getETag(gz, "-gzip"), gz.lastModified()))
+                return true;
+
+            response.setHeader("Content-Encoding", "gzip");
+            response.setContentLengthLong(gz.length());
+            response.setContentType(mime);
+            if (!request.getMethod().equals("HEAD") && gz.length() > 0)
+                sendFile(gz, new Range(0, gz.length() - 1));
+            return true;
+        }
+
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (!isCompressible(mime, length))
+            return false;
+
+        // The client's copy is up to date: no need to compress anything
+        String etag = getETag(file, "-gzip");
+        if (isNotModified(etag, lastModified)) {
+            setValidators(etag, lastModified);
+            return true;
+        }
+
+        byte[] compressed = servlet.getCompressedStaticFile(Arrays.asList(file.getPath(), length, lastModified), k -> gzip(file));
+        if (compressed.length >= length)
+            return false;
+
+        setValidators(etag, lastModified);
+
+        response.setHeader("Content-Encoding", "gzip");
+        response.setContentLength(compressed.length);
+        response.setContentType(mime);
+        if (!request.getMethod().equals("HEAD"))
+            response.getOutputStream().write(compressed);
+        return true;
+    }
+
+    private static byte[] gzip(File file) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(file.length(), MAX_COMPRESS_SIZE));
+        try (InputStream in = new FileInputStream(file); GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            IOUtils.copy(in, gz);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /** Is it worth compressing this file? Files that are tiny, huge, or already compressed (images, audio) are sent as-is. */
+    private static boolean isCompressible(String mime, long length) {
+        if (mime == null || length < MIN_COMPRESS_SIZE || length > MAX_COMPRESS_SIZE)
+            return false;
+
+        return mime.startsWith("text/") || COMPRESSIBLE_TYPES.contains(mime);
+    }
+
+    /**
+     * @param file the file
+     * @param suffix distinguishes different encodings of the same file, so they don't get the same etag
+     * @return a strong ETag derived from size and modification time
+     */
+    private static String getETag(File file, String suffix) {
+        return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + suffix + "\"";
+    }
+
+    /**
+     * Set the ETag and Last-Modified headers, and send a 304 Not Modified if the client's copy is up to date.
+     *
+     * @return true if a 304 was sent, and nothing else should be sent.
+     */
+    private boolean setValidators(String etag, long lastModified) {
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        if (isNotModified(etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the ranges requested in the Range header.
+     *
+     * @param etag current ETag of the file, for If-Range
+     * @param lastModified current modification time of the file, for If-Range
+     * @param length size of the file
+     * @return the requested ranges, sorted and merged where they overlap. Null if the whole file should be sent
+     *         (no Range header, an invalid or outdated one, or too many ranges). Empty if none of the ranges are satisfiable.
+     */
+    private List<Range> getRanges(String etag, long lastModified, long length) {
+        String header = request.getHeader("Range");
+        if (header == null || !header.startsWith("bytes="))
+            return null;
+
+        // If-Range: only send part of the file when the client has the current version of the rest of it
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(etag)) {
+            try {
+                long date = request.getDateHeader("If-Range");
+                if (date == -1 || lastModified / 1000 > date / 1000)
+                    return null;
+            } catch (IllegalArgumentException e) { // not a date, so an outdated etag
+                return null;
+            }
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        for (String spec : header.substring("bytes=".length()).split(",")) {
+            Matcher m = RANGE_SPEC.matcher(spec.trim());
+            if (!m.matches() || (m.group(1).isEmpty() && m.group(2).isEmpty()))
+                return null; // invalid header: ignore it
+
+            long start, end;
+            try {
+                if (m.group(1).isEmpty()) { // suffix: the last n bytes
+                    start = Math.max(0, length - Long.parseLong(m.group(2)));
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(m.group(1));
+                    end = m.group(2).isEmpty() ? length - 1 : Math.min(Long.parseLong(m.group(2)), length - 1);
+                    if (!m.group(2).isEmpty() && Long.parseLong(m.group(2)) < start)
+                        return null;
+                }
+            } catch (NumberFormatException e) { // too large
+                return null;
+            }
+
+            if (start < length && start <= end)
+                ranges.add(new Range(start, end));
+        }
+
+        // Merge overlapping and adjacent ranges, so clients can't make us send the same bytes many times.
+        ranges.sort((a, b) -> Long.compare(a.start, b.start));
+        List<Range> merged = new ArrayList<>();
+        for (Range r : ranges) {
+            Range last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && r.start <= last.end + 1)
+                merged.set(merged.size() - 1, new Range(last.start, Math.max(last.end, r.end)));
+            else
+                merged.add(r);
+        }
+
+        return merged.size() > MAX_RANGES ? null : merged;
+    }
+
+    /**
+     * Send several ranges of the file as multipart/byteranges.
+     * The container's sendfile support only covers a single range, so these are copied through the servlet's output stream.
+     * Browsers rarely ask for more than one range, so this isn't worth optimizing.
+     */
+    private void sendMultipart(File file, List<Range> ranges, String mime, long length) throws IOException {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+
+        // Headers of each part, we need them in advance to compute the content length
+        List<byte[]> partHeaders = new ArrayList<>();
+        long contentLength = 0;
+        for (Range range : ranges) {
+            String partHeader = "\r\n--" + boundary + "\r\n"
+                + (mime != null ? "Content-Type: " + mime + "\r\n" : "")
+                + "Content-Range: " + range.toContentRange(length) + "\r\n\r\n";
+            byte[] bytes = partHeader.getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(bytes);
+            contentLength += bytes.length + range.length();
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += end.length;
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (request.getMethod().equals("HEAD"))
+            return;
+
+        OutputStream out = response.getOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            for (int i = 0; i < ranges.size(); ++i) {
+                out.write(partHeaders.get(i));
+                transfer(channel, ranges.get(i), target);
+            }
+        }
+        out.write(end);
+    }
+
+    /**
+     * Send a single range of the file.
+     * Uses the container's sendfile support when available (Tomcat with the NIO/APR connectors),
+     * so the file is sent by the OS without passing through this application at all.
+     * Otherwise it's copied through the servlet's output stream.
+     */
+    private void sendFile(File file, Range range) throws IOException {
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START, range.start);
+            request.setAttribute(SENDFILE_END, range.end + 1); // exclusive
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            transfer(channel, range, Channels.newChannel(response.getOutputStream()));
+        }
+    }
+
+    /**
+     * Copy a range of the file to the target.
+     * Note that a channel wrapping the servlet's output stream is not a file or socket channel, so the bytes are read into
+     * a buffer and written to the stream like any other copy; transferTo just saves us from managing the buffer ourselves.
+     */
+    private static void transfer(FileChannel channel, Range range, WritableByteChannel target) throws IOException {
+        long position = range.start;
+        long end = range.end + 1;
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n <= 0)
+                throw new IOException("File was truncated while sending");
+            position += n;
+        }
+    }
+
+    /**
+     * Is the client's copy up to date? If-None-Match takes precedence over If-Modified-Since, as per RFC 7232.
+     *
+     * @param etag current ETag of the file
+     * @param lastModified current modification time of the file
+     * @return true if a 304 Not Modified can be sent
+     */
+    private boolean isNotModified(String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null)
+            return matchesETag(ifNoneMatch, etag);
+
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            // http dates only have a precision of seconds
+            return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) { // unparseable date
+            return false;
+        }
+    }
+
+    /** Range of bytes in a file, both ends inclusive */
+    private static class Range {
+        final long start;
+
+        final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+
+        String toContentRange(long fileLength) {
+            return "bytes " + start + "-" + end + "/" + fileLength;
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package nl.inl.corpuswebsite.response;
 
+import java.io.IOException;
 import java.util.List;
 
 import javax.servlet.ServletException;
@@ -23,7 +24,7 @@ public class CorporaResponse extends BaseResponse {
     }
 
     @Override
-    protected void completeRequest() {
-        displayHtmlTemplate(servlet.getTemplate("corpora"));
+    protected void completeRequest() throws IOException {
+        displayCachedHtmlTemplate("corpora");
     }
 }
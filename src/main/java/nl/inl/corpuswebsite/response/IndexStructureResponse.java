@@ -0,0 +1,167 @@
+package nl.inl.corpuswebsite.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nl.inl.corpuswebsite.BaseResponse;
+import nl.inl.corpuswebsite.MainServlet;
+import nl.inl.corpuswebsite.utils.CorpusConfig;
+import nl.inl.corpuswebsite.utils.RenderedPage;
+
+/**
+ * The index structure of a corpus, as returned by blacklab-server (including the values of annotations shown as dropdowns).
+ *
+ * <pre>
+ * - corpus/index-structure/VERSION.json - the structure as json
+ * - corpus/index-structure/VERSION.js   - a script that sets SINGLEPAGE.INDEX to the structure, used by the search page
+ * </pre>
+ *
+ * The version is derived from the contents, so when requested with the current version, the response can be cached forever.
+ * Other versions get the current structure, but the browser must check whether it's still current every time.
+ * User corpora are private, so shared caches (proxies) must not store their structure.
+ */
+public class IndexStructureResponse extends BaseResponse {
+
+    private static final String CACHE_FOREVER = "public, max-age=31536000, immutable";
+
+    private static final String CACHE_FOREVER_PRIVATE = "private, max-age=31536000, immutable";
+
+    private static final byte[] SCRIPT_PREFIX = "var SINGLEPAGE = SINGLEPAGE || {};\nSINGLEPAGE.INDEX = ".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] SCRIPT_SUFFIX = ";\n".getBytes(StandardCharsets.US_ASCII);
+
+    public IndexStructureResponse() {
+        super(true);
+    }
+
+    @Override
+    public void init(HttpServletRequest request, HttpServletResponse response, MainServlet servlet, String corpus, List<String> pathParameters) {
+        // Don't call super(), we don't need the website config
+        this.request = request;
+        this.response = response;
+        this.servlet = servlet;
+        this.corpus = corpus;
+        this.pathParameters = pathParameters;
+    }
+
+    @Override
+    protected void completeRequest() throws IOException {
+        CorpusConfig config = servlet.getCorpusConfig(corpus);
+        String file = pathParameters.size() == 1 ? pathParameters.get(0) : "";
+        int dot = file.lastIndexOf('.');
+        String extension = dot != -1 ? file.substring(dot + 1) : "";
+        if (config == null || !(extension.equals("js") || extension.equals("json"))) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        RenderedPage json = getJson(servlet, corpus, config);
+        boolean isPrivate = MainServlet.isUserCorpus(corpus);
+        String cacheControl;
+        if (file.substring(0, dot).equals(getVersion(json)))
+            cacheControl = isPrivate ? CACHE_FOREVER_PRIVATE : CACHE_FOREVER;
+        else
+            cacheControl = isPrivate ? "private, no-cache" : "no-cache";
+
+        if (extension.equals("json"))
+            sendPage(json, cacheControl);
+        else
+            sendScript(json, cacheControl);
+    }
+
+    /**
+     * @param servlet the servlet
+     * @param corpus the corpus
+     * @param config the corpus' config
+     * @return url of the script that sets SINGLEPAGE.INDEX, for the current version of the index structure
+     */
+    public static String getUrl(MainServlet servlet, String corpus, CorpusConfig config) {
+        try {
+            return servlet.getServletContext().getContextPath() + "/" + URLEncoder.encode(corpus, StandardCharsets.UTF_8.name())
+                + "/index-structure/" + getVersion(getJson(servlet, corpus, config)) + ".js";
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** The version is the hash of the json, as used in its ETag */
+    private static String getVersion(RenderedPage json) {
+        return json.getETag().replace("\"", "");
+    }
+
+    private static RenderedPage getJson(MainServlet servlet, String corpus, CorpusConfig config) {
+        return servlet.getRenderedPage(Arrays.asList("index-structure.json", corpus, config),
+            k -> new RenderedPage(config.getJsonUnescaped().getBytes(StandardCharsets.UTF_8), "application/json", "utf-8"));
+    }
+
+    /**
+     * Send the script that sets SINGLEPAGE.INDEX. It's written around the bytes of the json page as it's sent,
+     * instead of being kept as a page of its own, so the (possibly large) structure isn't kept in memory twice more.
+     * When compressed, it's compressed while it's sent; the versioned script is cached by the browser, so this doesn't happen often.
+     *
+     * @param json the json page
+     * @param cacheControl value for the Cache-Control header
+     */
+    private void sendScript(RenderedPage json, String cacheControl) throws IOException {
+        boolean compress = canCompress("gzip");
+        String etag = "\"" + getVersion(json) + (compress ? "-js-gzip\"" : "-js\"");
+
+        response.setHeader("Cache-Control", cacheControl);
+        response.setHeader("Vary", "Accept-Encoding");
+        response.setHeader("ETag", etag);
+        if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] body = json.getBody();
+        response.setCharacterEncoding("utf-8");
+        response.setContentType("application/javascript");
+        if (compress)
+            response.setHeader("Content-Encoding", "gzip");
+        else
+            response.setContentLengthLong(SCRIPT_PREFIX.length + body.length + countLineSeparators(body) * 3L + SCRIPT_SUFFIX.length);
+
+        OutputStream out = compress ? new GZIPOutputStream(response.getOutputStream()) : response.getOutputStream();
+        out.write(SCRIPT_PREFIX);
+        // json is valid javascript, except for the line and paragraph separators in strings (before ES2019)
+        int start = 0;
+        for (int i = 0; i + 2 < body.length; ++i) {
+            if (isLineSeparator(body, i)) {
+                out.write(body, start, i - start);
+                out.write(("\\u202" + (body[i + 2] == (byte) 0xA8 ? "8" : "9")).getBytes(StandardCharsets.US_ASCII));
+                start = i + 3;
+                i += 2;
+            }
+        }
+        out.write(body, start, body.length - start);
+        out.write(SCRIPT_SUFFIX);
+        if (compress)
+            ((GZIPOutputStream) out).finish();
+    }
+
+    /** Is there a (utf-8 encoded) U+2028 LINE SEPARATOR or U+2029 PARAGRAPH SEPARATOR at this position? */
+    private static boolean isLineSeparator(byte[] utf8, int i) {
+        return utf8[i] == (byte) 0xE2 && utf8[i + 1] == (byte) 0x80 && (utf8[i + 2] == (byte) 0xA8 || utf8[i + 2] == (byte) 0xA9);
+    }
+
+    private static int countLineSeparators(byte[] utf8) {
+        int n = 0;
+        for (int i = 0; i + 2 < utf8.length; ++i) {
+            if (isLineSeparator(utf8, i)) {
+                ++n;
+                i += 2;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,41 @@
+package nl.inl.corpuswebsite.response;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nl.inl.corpuswebsite.BaseResponse;
+import nl.inl.corpuswebsite.MainServlet;
+
+/**
+ * Readiness check for load balancers: 200 once the startup warm-up has finished (or when it's disabled), 503 until then.
+ */
+public class ReadyResponse extends BaseResponse {
+
+    public ReadyResponse() {
+        super(false);
+    }
+
+    @Override
+    public void init(HttpServletRequest request, HttpServletResponse response, MainServlet servlet, String corpus, List<String> pathParameters) {
+        // Don't call super(), that loads the website config, which is exactly what we don't want to wait for here.
+        this.request = request;
+        this.response = response;
+        this.servlet = servlet;
+        this.corpus = corpus;
+        this.pathParameters = pathParameters;
+    }
+
+    @Override
+    protected void completeRequest() throws IOException {
+        boolean ready = servlet.isReady();
+
+        response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Cache-Control", "no-store");
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("utf-8");
+        response.getWriter().write(ready ? "ready" : "warming up");
+    }
+}
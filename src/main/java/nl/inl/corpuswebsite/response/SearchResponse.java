@@ -11,7 +11,7 @@ public class SearchResponse extends BaseResponse {
     }
 
     @Override
-    protected void completeRequest() {
+    protected void completeRequest() throws IOException {
         CorpusConfig config = servlet.getCorpusConfig(corpus);
         if (config == null) {
             try {
@@ -22,9 +22,10 @@ public class SearchResponse extends BaseResponse {
             }
         }
 
-        context.put("indexStructureJson", config.getJsonUnescaped());
+        // The index structure is large, so it's loaded separately, and can be cached by the browser
+        context.put("indexStructureUrl", IndexStructureResponse.getUrl(servlet, corpus, config));
 
         // display template
-        displayHtmlTemplate(servlet.getTemplate("search"));
+        displayCachedHtmlTemplate("search", config);
     }
 }
@@ -0,0 +1,629 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A concurrent, size-bounded cache that loads missing values on demand.
+ *
+ * <pre>
+ * - Loading is single-flight: concurrent requests for the same missing key wait for the same load,
+ *   while requests for other keys are not blocked.
+ * - When more than maxSize entries are present, or their total weight exceeds the maximum weight (e.g. bytes of memory),
+ *   entries that haven't been used recently are evicted (see below).
+ * - Values can expire after a time to live that may depend on the value (e.g. a short time for negative results).
+ *   Optionally, an expired value is still served when loading its replacement fails.
+ * - Values can be revalidated when they are retrieved (e.g. check whether the file it was read from has changed).
+ * - Values can be refreshed in the background after a while, or on demand. The old value is served until the new one is ready.
+ * - Eviction can be limited to some keys, and those keys can be removed when they haven't been used for a while.
+ * - Hits and misses are counted, for monitoring.
+ * </pre>
+ *
+ * Lookups don't lock, they only mark the entry as used. Adding and removing entries takes a short lock (never held while loading).
+ * Eviction approximates least recently used ("second chance"): entries are kept in the order they were added, and evicted oldest
+ * first, except that an entry that was used since eviction last looked at it is moved to the back instead. Entries that are used
+ * all the time are therefore kept, without every lookup having to reorder the entries under a lock.
+ * Idle entries (see {@link #setMaxIdle(long)}) are found by going over all entries, at most a few times per idle period.
+ *
+ * Null keys are not supported. When the loader throws, the exception is passed on to all waiting callers, and nothing is cached.
+ * The loader can be passed to the constructor, or to {@link #get(Object, Function)} when loading needs more than just the key.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class Cache<K, V> {
+
+    private static class Entry<V> {
+        final CompletableFuture<V> value = new CompletableFuture<>();
+
+        /** When the value should be discarded, only valid once the value has been loaded. */
+        volatile long expires = Long.MAX_VALUE;
+
+        volatile long lastAccess;
+
+        /** Has the entry been used since eviction last looked at it? */
+        volatile boolean used;
+
+        /** When loading the value started, only valid once the value has been loaded. */
+        volatile long loaded;
+
+        /** Weight of the value, only valid once the value has been loaded. */
+        volatile long weight;
+
+        /** Is the weight included in the cache's total weight? Guarded by the cache's lock. */
+        boolean weighed;
+
+        /** The expired entry this one replaces, to fall back on when loading fails. Cleared once loaded. */
+        volatile Entry<V> expired;
+
+        /** Is a background refresh running for this entry? */
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(long now) {
+            this.lastAccess = now;
+        }
+
+        boolean isLoaded() {
+            return value.isDone() && !value.isCompletedExceptionally();
+        }
+    }
+
+    /** How many times per idle period (see {@link #setMaxIdle(long)}) to look for idle entries */
+    private static final int IDLE_CHECKS = 4;
+
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The same entries, in the order eviction looks at them: oldest first, except that used entries are moved to the back
+     * when eviction passes them. Guarded by {@link #lock}, as are all changes to {@link #entries}.
+     */
+    private final LinkedHashMap<K, Entry<V>> usage = new LinkedHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Total weight of the loaded values in {@link #entries} */
+    private final AtomicLong totalWeight = new AtomicLong();
+
+    private final Function<K, V> loader;
+
+    private final int maxSize;
+
+    /** Time to live in milliseconds, 0 or less to keep the value until it's evicted. */
+    private ToLongFunction<V> timeToLive = v -> 0;
+
+    /** Is this value still valid? */
+    private Predicate<V> validator = v -> true;
+
+    /** Refresh values in the background when they're older than this, 0 or less to never refresh. */
+    private long refreshAfter = 0;
+
+    /** Runs background refreshes */
+    private Executor refreshExecutor;
+
+    /** Which entries may be evicted when the cache is full, or when they have been idle for too long. */
+    private Predicate<K> evictable = k -> true;
+
+    /** Evictable entries that have not been used for this long are removed, 0 or less to keep them. */
+    private long maxIdle = 0;
+
+    /** When to look for idle entries again */
+    private volatile long nextIdleCheck = 0;
+
+    /** Weight of a value, e.g. its approximate size in bytes. */
+    private ToLongFunction<V> weigher = v -> 0;
+
+    /** Maximum total weight of the values */
+    private long maxWeight = Long.MAX_VALUE;
+
+    /** Serve expired values when loading their replacement fails, and try again after this many milliseconds. 0 or less to not serve them. */
+    private long staleRetryAfter = 0;
+
+    /** For which loading errors to serve expired values */
+    private Predicate<Throwable> serveStaleOn = t -> false;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder staleHits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /** Current time in milliseconds */
+    private final LongSupplier clock;
+
+    /**
+     * Create a cache without a default loader, values must be retrieved using {@link #get(Object, Function)}.
+     * Background refreshes are not possible without a default loader.
+     *
+     * @param maxSize maximum number of entries
+     */
+    public Cache(int maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * @param maxSize maximum number of entries
+     * @param loader loads the value for a key, called at most once concurrently for a key.
+     */
+    public Cache(int maxSize, Function<K, V> loader) {
+        this(maxSize, loader, System::currentTimeMillis);
+    }
+
+    /** With a different clock, for testing */
+    Cache(int maxSize, Function<K, V> loader, LongSupplier clock) {
+        this.maxSize = maxSize;
+        this.loader = loader;
+        this.clock = clock;
+    }
+
+    /**
+     * @param timeToLive returns the time to live for a value in milliseconds, 0 or less means forever
+     * @return this cache
+     */
+    public Cache<K, V> setTimeToLive(ToLongFunction<V> timeToLive) {
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * @param validator checked every time a value is retrieved, when it returns false the value is loaded again
+     * @return this cache
+     */
+    public Cache<K, V> setValidator(Predicate<V> validator) {
+        this.validator = validator;
+        return this;
+    }
+
+    /**
+     * Reload values in the background once they are older than the given time.
+     * Until the new value has been loaded, the old value is returned.
+     * When reloading fails, the old value is kept, and the reload is retried on a later request.
+     *
+     * @param refreshAfterMs age in milliseconds, 0 or less to never refresh
+     * @param executor runs the reloads
+     * @return this cache
+     */
+    public Cache<K, V> setRefreshAfter(long refreshAfterMs, Executor executor) {
+        this.refreshAfter = refreshAfterMs;
+        this.refreshExecutor = executor;
+        return this;
+    }
+
+    /**
+     * @param executor runs the reloads started by {@link #refresh(Object)}
+     * @return this cache
+     */
+    public Cache<K, V> setRefreshExecutor(Executor executor) {
+        this.refreshExecutor = executor;
+        return this;
+    }
+
+    /**
+     * @param evictable which keys may be evicted, both when the cache is full and when they are idle.
+     *        The cache may grow beyond its maximum size when there is nothing left to evict.
+     * @return this cache
+     */
+    public Cache<K, V> setEvictable(Predicate<K> evictable) {
+        this.evictable = evictable;
+        return this;
+    }
+
+    /**
+     * @param maxIdleMs remove evictable entries that haven't been used for this long (in milliseconds), 0 or less to keep them
+     * @return this cache
+     */
+    public Cache<K, V> setMaxIdle(long maxIdleMs) {
+        this.maxIdle = maxIdleMs;
+        return this;
+    }
+
+    /**
+     * Keep serving a value after it expired when loading the new value fails (e.g. because the server it came from is down),
+     * instead of passing on the error. Other errors (e.g. the value no longer exists) remove the value, and are passed on.
+     *
+     * @param retryAfterMs try loading the value again after this many milliseconds, while serving the expired value
+     * @param serveStaleOn which errors (as thrown by the loader) to serve the expired value for
+     * @return this cache
+     */
+    public Cache<K, V> setServeStaleOnError(long retryAfterMs, Predicate<Throwable> serveStaleOn) {
+        this.staleRetryAfter = retryAfterMs;
+        this.serveStaleOn = serveStaleOn;
+        return this;
+    }
+
+    /**
+     * Evict least recently used entries when the total weight of the values exceeds the maximum.
+     * The weight of a value is determined once, when it's loaded.
+     *
+     * @param weigher returns the weight of a value, e.g. its approximate size in bytes
+     * @param maxWeight maximum total weight
+     * @return this cache
+     */
+    public Cache<K, V> setWeigher(ToLongFunction<V> weigher, long maxWeight) {
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        return this;
+    }
+
+    /**
+     * Get the value for the key, loading it if it is not present, expired or no longer valid.
+     *
+     * @param key the key
+     * @return the value
+     */
+    public V get(K key) {
+        if (loader == null)
+            throw new IllegalStateException("Cache has no default loader");
+        return get(key, loader);
+    }
+
+    /**
+     * Get the value for the key, loading it with the given loader if it is not present, expired or no longer valid.
+     *
+     * @param key the key
+     * @param loader loads the value for the key, called at most once concurrently for a key.
+     * @return the value
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        Entry<V> expired = null;
+        while (true) {
+            Entry<V> e = entries.get(key);
+            if (e == null) {
+                Entry<V> created = new Entry<>(clock.getAsLong());
+                created.expired = expired;
+                e = putIfAbsent(key, created);
+                if (e == null) {
+                    misses.increment();
+                    load(key, created, loader); // not a use: the new entry is at the back already
+                    e = created;
+                } else {
+                    hits.increment();
+                    touch(e);
+                }
+            } else if (e.isLoaded() && isStale(e)) {
+                remove(key, e);
+                if (staleRetryAfter > 0 && e.expires <= clock.getAsLong())
+                    expired = e;
+                continue;
+            } else {
+                hits.increment();
+                touch(e);
+            }
+
+            refreshIfNeeded(key, e);
+            try {
+                return e.value.join();
+            } catch (CompletionException ex) {
+                remove(key, e);
+                Entry<V> fallback = e.expired;
+                if (fallback != null && serveStaleOn.test(ex.getCause())) {
+                    fallback.expires = clock.getAsLong() + staleRetryAfter;
+                    putIfAbsent(key, fallback);
+                    staleHits.increment();
+                    return fallback.value.getNow(null);
+                }
+                throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+            }
+        }
+    }
+
+    /**
+     * Get the value for the key, but only if it's present and valid.
+     *
+     * @param key the key
+     * @return the value or null
+     */
+    public V getIfPresent(K key) {
+        Entry<V> e = entries.get(key);
+        if (e == null || !e.isLoaded() || isStale(e)) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        touch(e);
+        return e.value.getNow(null);
+    }
+
+    /**
+     * Get the value for the key, but only if it's present and valid.
+     * Unlike {@link #getIfPresent(Object)}, this doesn't count as a lookup (for the hit and miss counts) or as a use of the value.
+     *
+     * @param key the key
+     * @return the value or null
+     */
+    public V peek(K key) {
+        Entry<V> e = entries.get(key);
+        return e != null && e.isLoaded() && !isStale(e) ? e.value.getNow(null) : null;
+    }
+
+    /**
+     * Is there a valid value for the key? Unlike {@link #getIfPresent(Object)}, this doesn't count as a use of the value.
+     *
+     * @param key the key
+     * @return true if there is a loaded value that hasn't expired and is still valid
+     */
+    public boolean contains(K key) {
+        Entry<V> e = entries.get(key);
+        return e != null && e.isLoaded() && !isStale(e);
+    }
+
+    /**
+     * Reload the value for a key in the background, and replace the current value once it's loaded.
+     * Until then, the current value is returned. Does nothing if there is no value for the key.
+     * Requires a default loader and a refresh executor.
+     *
+     * @param key the key
+     * @return completes once the new value is in place, or exceptionally if loading it failed (the old value is then kept)
+     */
+    public CompletableFuture<Void> refresh(K key) {
+        if (!entries.containsKey(key))
+            return CompletableFuture.completedFuture(null);
+        return reload(key);
+    }
+
+    /**
+     * Reload the values for all matching keys in the background, see {@link #refresh(Object)}.
+     *
+     * @param predicate which keys to refresh
+     * @return completes once all new values are in place, or exceptionally if loading any of them failed
+     */
+    public CompletableFuture<Void> refreshIf(Predicate<K> predicate) {
+        return CompletableFuture.allOf(entries.keySet().stream().filter(predicate).map(this::reload).toArray(CompletableFuture[]::new));
+    }
+
+    /** Remove the value for a key, so it will be loaded again on the next request. */
+    public void invalidate(K key) {
+        Entry<V> e = entries.get(key);
+        if (e != null)
+            remove(key, e);
+    }
+
+    /** Remove the values for all matching keys, so they will be loaded again on the next request. */
+    public void invalidateIf(Predicate<K> predicate) {
+        for (K key : new ArrayList<>(entries.keySet())) {
+            if (predicate.test(key))
+                invalidate(key);
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            entries.clear();
+            usage.clear();
+            totalWeight.set(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** @return total weight of the loaded values */
+    public long weight() {
+        return totalWeight.get();
+    }
+
+    /** @return number of lookups that found a value (or a value that was already being loaded) */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /** @return number of lookups that found no usable value */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /** @return number of times an expired value was served because loading its replacement failed */
+    public long staleHits() {
+        return staleHits.sum();
+    }
+
+    private boolean isStale(Entry<V> e) {
+        return e.expires <= clock.getAsLong() || !validator.test(e.value.getNow(null));
+    }
+
+    private void load(K key, Entry<V> e, Function<? super K, ? extends V> loader) {
+        try {
+            long started = clock.getAsLong();
+            V value = loader.apply(key);
+            long ttl = timeToLive.applyAsLong(value);
+            e.expires = ttl > 0 ? clock.getAsLong() + ttl : Long.MAX_VALUE;
+            e.loaded = started;
+            e.weight = weigher.applyAsLong(value);
+            e.expired = null;
+            e.value.complete(value);
+        } catch (Throwable t) {
+            e.value.completeExceptionally(t);
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (entries.get(key) == e)
+                weigh(e);
+        } finally {
+            lock.unlock();
+        }
+        evictIfNeeded();
+    }
+
+    /** Start a background reload if the value is old enough, and no reload is running yet. */
+    private void refreshIfNeeded(K key, Entry<V> e) {
+        if (refreshAfter <= 0 || loader == null || !e.isLoaded() || e.loaded + refreshAfter > clock.getAsLong() || !e.refreshing.compareAndSet(false, true))
+            return;
+
+        // When the reload succeeded the entry has been replaced, and the flag no longer matters.
+        reload(key).whenComplete((r, t) -> e.refreshing.set(false));
+    }
+
+    /**
+     * Load the value for the key on the refresh executor, and swap it in.
+     * The new value only replaces an entry whose value was loaded earlier, so an outdated reload never replaces a newer value,
+     * and an entry that is being loaded (because it was invalidated) is left alone.
+     */
+    private CompletableFuture<Void> reload(K key) {
+        if (loader == null || refreshExecutor == null)
+            throw new IllegalStateException("Refreshing requires a default loader and a refresh executor");
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            refreshExecutor.execute(() -> {
+                Entry<V> fresh = new Entry<>(clock.getAsLong());
+                load(key, fresh, loader);
+                try {
+                    fresh.value.join();
+                } catch (CompletionException ex) {
+                    done.completeExceptionally(ex.getCause());
+                    return;
+                }
+
+                lock.lock();
+                try {
+                    Entry<V> current = entries.get(key);
+                    if (current != null && current.isLoaded() && current.loaded <= fresh.loaded) {
+                        fresh.lastAccess = current.lastAccess;
+                        unweigh(current);
+                        entries.put(key, fresh);
+                        // The new value goes to the back, like a new entry
+                        usage.remove(key);
+                        usage.put(key, fresh);
+                        weigh(fresh);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                evictIfNeeded();
+                done.complete(null);
+            });
+        } catch (RejectedExecutionException ex) {
+            done.completeExceptionally(ex);
+        }
+        return done;
+    }
+
+    /** Remove idle entries (if it's time to look for them), and then unused entries until we're within size and weight bounds again. */
+    private void evictIfNeeded() {
+        long now = clock.getAsLong();
+        boolean checkIdle = maxIdle > 0 && now >= nextIdleCheck;
+        if (!checkIdle && !isFull())
+            return;
+
+        lock.lock();
+        try {
+            if (checkIdle) {
+                nextIdleCheck = now + maxIdle / IDLE_CHECKS;
+                Iterator<Map.Entry<K, Entry<V>>> it = usage.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<K, Entry<V>> candidate = it.next();
+                    Entry<V> e = candidate.getValue();
+                    if (e.isLoaded() && e.lastAccess < now - maxIdle && evictable.test(candidate.getKey()))
+                        evict(it, candidate);
+                }
+            }
+
+            // Oldest first, giving used entries a second chance. So when every entry has been used, the second pass evicts the oldest.
+            // Entries that are still loading or may not be evicted are skipped, there are few of those.
+            for (int pass = 0; pass < 2 && isFull(); ++pass) {
+                List<Map.Entry<K, Entry<V>>> used = new ArrayList<>();
+                Iterator<Map.Entry<K, Entry<V>>> it = usage.entrySet().iterator();
+                while (it.hasNext() && isFull()) {
+                    Map.Entry<K, Entry<V>> candidate = it.next();
+                    Entry<V> e = candidate.getValue();
+                    if (!e.isLoaded() || !evictable.test(candidate.getKey()))
+                        continue;
+                    if (e.used) {
+                        e.used = false;
+                        it.remove();
+                        used.add(candidate);
+                        continue;
+                    }
+                    evict(it, candidate);
+                }
+                for (Map.Entry<K, Entry<V>> u : used)
+                    usage.put(u.getKey(), u.getValue());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFull() {
+        return entries.size() > maxSize || totalWeight.get() > maxWeight;
+    }
+
+    /** Remove the candidate from {@link #usage} (using the iterator) and {@link #entries}. Call with the lock held. */
+    private void evict(Iterator<Map.Entry<K, Entry<V>>> it, Map.Entry<K, Entry<V>> candidate) {
+        it.remove();
+        entries.remove(candidate.getKey());
+        unweigh(candidate.getValue());
+    }
+
+    /** Add an entry if there is none for the key yet, see {@link Map#putIfAbsent(Object, Object)}. */
+    private Entry<V> putIfAbsent(K key, Entry<V> e) {
+        lock.lock();
+        try {
+            Entry<V> current = entries.putIfAbsent(key, e);
+            if (current == null) {
+                usage.put(key, e);
+                weigh(e);
+            }
+            return current;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remove the entry, if it's still the one for the key. */
+    private void remove(K key, Entry<V> e) {
+        lock.lock();
+        try {
+            if (entries.remove(key, e)) {
+                usage.remove(key);
+                unweigh(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Mark the entry as used, so it isn't evicted the next time eviction looks at it. */
+    private void touch(Entry<V> e) {
+        e.lastAccess = clock.getAsLong();
+        e.used = true;
+    }
+
+    /** Add the entry's weight to the total, if it's loaded and not counted yet. Call with the lock held. */
+    private void weigh(Entry<V> e) {
+        if (e.isLoaded() && !e.weighed) {
+            e.weighed = true;
+            totalWeight.addAndGet(e.weight);
+        }
+    }
+
+    /** Remove the entry's weight from the total, if it was counted. Call with the lock held. */
+    private void unweigh(Entry<V> e) {
+        if (e.weighed) {
+            e.weighed = false;
+            totalWeight.addAndGet(-e.weight);
+        }
+    }
+}
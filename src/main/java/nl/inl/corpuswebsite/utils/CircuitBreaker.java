@@ -0,0 +1,190 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to a server that is down or overloaded, so callers fail at once instead of waiting for a timeout.
+ *
+ * <pre>
+ * - Closed: requests are sent. When too many of the recent requests failed or were too slow, the breaker opens.
+ * - Open: requests are refused, until the retry delay has passed.
+ * - Half open: a single trial request is sent to see whether the server is back. If it succeeds the breaker closes, otherwise it opens again.
+ *   If the trial doesn't report back within the retry delay, another trial is allowed.
+ * </pre>
+ *
+ * Callers ask {@link #allowRequest()} for a permit before every request, and report the outcome with {@link #record(Permit, boolean, long)}.
+ * Outcomes are only taken into account for permits handed out in the current state, so a request that was sent before the breaker
+ * opened (and took a long time to fail) doesn't overrule the trial request.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /** Thrown instead of sending a request while the breaker is open. */
+    public static class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String message) {
+            super(message);
+        }
+    }
+
+    /** Permission to send a request, to be passed back with its outcome. */
+    public static final class Permit {
+        private final Phase phase;
+
+        private Permit(Phase phase) {
+            this.phase = phase;
+        }
+    }
+
+    /** A state, from when it was entered until it's left. Never modified, except for the counts in the window. */
+    private static final class Phase {
+        final State state;
+
+        /** While open: when to try again. While half open: when to give up on the trial request and allow another. */
+        final long retryAt;
+
+        /** Handed out for all requests while closed, or for the single trial request while half open. */
+        final Permit permit = new Permit(this);
+
+        /** Requests (high 32 bits) and failures (low 32 bits) in the current window, while closed. Updated as one, so they never disagree. */
+        final AtomicLong window = new AtomicLong();
+
+        Phase(State state, long retryAt) {
+            this.state = state;
+            this.retryAt = retryAt;
+        }
+    }
+
+    /** The failure rate is determined over this many requests */
+    static final int WINDOW_SIZE = 20;
+
+    /** Don't open on the first few failures after (re)starting the window */
+    static final int MIN_REQUESTS = 10;
+
+    /** Name of the server, for logging */
+    private final String name;
+
+    /** Percentage of failed requests at which to open */
+    private final int failureThreshold;
+
+    /** Requests taking longer than this (in milliseconds) count as failed, 0 or less to not count slow requests */
+    private final long slowThresholdMs;
+
+    /** How long to refuse requests once opened */
+    private final long retryDelayMs;
+
+    private final LongSupplier clock;
+
+    private final AtomicReference<Phase> phase = new AtomicReference<>(new Phase(State.CLOSED, 0));
+
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * @param name name of the server, for logging
+     * @param failureThreshold percentage of failed (or slow) requests at which to stop sending requests
+     * @param slowThresholdMs requests taking longer than this (in milliseconds) count as failed, 0 or less to not count slow requests
+     * @param retryDelayMs how long to refuse requests before trying again
+     */
+    public CircuitBreaker(String name, int failureThreshold, long slowThresholdMs, long retryDelayMs) {
+        this(name, failureThreshold, slowThresholdMs, retryDelayMs, System::currentTimeMillis);
+    }
+
+    /** With a different clock, for testing */
+    CircuitBreaker(String name, int failureThreshold, long slowThresholdMs, long retryDelayMs, LongSupplier clock) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.slowThresholdMs = slowThresholdMs;
+        this.retryDelayMs = retryDelayMs;
+        this.clock = clock;
+    }
+
+    /**
+     * @return permission to send a request, or null if it may not be sent now.
+     *         The outcome of a permitted request must be reported using {@link #record(Permit, boolean, long)}.
+     */
+    public Permit allowRequest() {
+        Phase current = phase.get();
+        if (current.state == State.CLOSED)
+            return current.permit;
+
+        // Open and time to try again, or half open and the trial never reported back: allow a (new) trial
+        long now = clock.getAsLong();
+        if (now >= current.retryAt) {
+            Phase trial = new Phase(State.HALF_OPEN, now + retryDelayMs);
+            if (phase.compareAndSet(current, trial)) {
+                logger.info("Trying {} again", name);
+                return trial.permit;
+            }
+        }
+        refused.increment();
+        return null;
+    }
+
+    /**
+     * Report the outcome of a request.
+     *
+     * @param permit the permit the request was sent with
+     * @param succeeded did the server respond (even if with an error that's the client's fault)?
+     * @param durationMs how long it took
+     */
+    public void record(Permit permit, boolean succeeded, long durationMs) {
+        Phase current = permit.phase;
+        if (phase.get() != current)
+            return; // sent before the last change of state, doesn't tell us anything new
+
+        boolean failed = !succeeded || (slowThresholdMs > 0 && durationMs >= slowThresholdMs);
+        if (current.state == State.HALF_OPEN) {
+            if (failed)
+                open(current, "it is still failing");
+            else if (phase.compareAndSet(current, new Phase(State.CLOSED, 0)))
+                logger.info("{} is responding again, resuming requests", name);
+            return;
+        }
+
+        while (true) {
+            long window = current.window.get();
+            int requests = (int) (window >>> 32) + 1;
+            int failures = (int) window + (failed ? 1 : 0);
+            long next = requests >= WINDOW_SIZE ? 0 : ((long) requests << 32) | failures;
+            if (current.window.compareAndSet(window, next)) {
+                if (requests >= MIN_REQUESTS && failures * 100 >= failureThreshold * requests)
+                    open(current, failures + " of the last " + requests + " requests failed or took longer than " + slowThresholdMs + "ms");
+                return;
+            }
+        }
+    }
+
+    private void open(Phase from, String reason) {
+        if (phase.compareAndSet(from, new Phase(State.OPEN, clock.getAsLong() + retryDelayMs)))
+            logger.warn("Not sending requests to {} for {}s, {}", name, retryDelayMs / 1000, reason);
+    }
+
+    public State getState() {
+        return phase.get().state;
+    }
+
+    /** @return number of requests refused since startup */
+    public long getRefused() {
+        return refused.sum();
+    }
+
+    /** @return seconds until requests are tried again, 0 when not open */
+    public long getRetryIn() {
+        Phase current = phase.get();
+        return current.state == State.CLOSED ? 0 : Math.max(0, (current.retryAt - clock.getAsLong() + 999) / 1000);
+    }
+}
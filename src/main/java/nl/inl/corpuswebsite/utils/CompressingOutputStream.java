@@ -0,0 +1,107 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes a response body compressed with gzip or deflate, but only when it turns out to be large enough to be worth it.
+ *
+ * The first bytes are buffered until the threshold is reached; from then on everything is compressed.
+ * If the body is smaller than the threshold, it's sent as-is with a Content-Length.
+ * As headers can only be set before the body is sent, nothing is written to the response until one of those happens.
+ */
+public class CompressingOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final HttpServletResponse response;
+
+    /** "gzip" or "deflate" */
+    private final String encoding;
+
+    private final int threshold;
+
+    /** Data written while we don't know yet whether to compress, null once we know. */
+    private ByteArrayOutputStream buffer;
+
+    /** Where data is written once we're compressing, null until then. */
+    private OutputStream out;
+
+    /**
+     * @param response the response to write to
+     * @param encoding "gzip" or "deflate"
+     * @param threshold compress only when the body is at least this many bytes
+     */
+    public CompressingOutputStream(HttpServletResponse response, String encoding, int threshold) {
+        if (!encoding.equals("gzip") && !encoding.equals("deflate"))
+            throw new IllegalArgumentException("Unsupported encoding " + encoding);
+
+        this.response = response;
+        this.encoding = encoding;
+        this.threshold = threshold;
+        this.buffer = new ByteArrayOutputStream(Math.min(threshold, BUFFER_SIZE));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (out == null) {
+            if (buffer.size() + len < threshold) {
+                buffer.write(b, off, len);
+                return;
+            }
+            startCompressing();
+        }
+        out.write(b, off, len);
+    }
+
+    private void startCompressing() throws IOException {
+        response.setHeader("Content-Encoding", encoding);
+
+        // Sync flush, so flush() sends everything written so far, instead of waiting for the compressor to fill its block
+        OutputStream raw = response.getOutputStream();
+        out = encoding.equals("gzip")
+            ? new GZIPOutputStream(raw, BUFFER_SIZE, true)
+            : new DeflaterOutputStream(raw, true);
+
+        buffer.writeTo(out);
+        buffer = null;
+    }
+
+    /**
+     * Sends the data written so far. As it then has to be sent before we know the size of the body, it will be compressed.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (out == null && buffer != null && buffer.size() > 0)
+            startCompressing();
+        if (out != null)
+            out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close(); // also finishes the compressed stream and releases the deflater
+            return;
+        }
+        if (buffer == null)
+            return; // already closed
+
+        // Small enough, send it uncompressed
+        response.setContentLength(buffer.size());
+        OutputStream raw = response.getOutputStream();
+        buffer.writeTo(raw);
+        buffer = null;
+        raw.close();
+    }
+}
@@ -1,40 +1,38 @@
 package nl.inl.corpuswebsite.utils;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.stream.Collectors;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathExpressionException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
+/**
+ * The structure of a corpus (display name, document format, annotations, etc.), as returned by blacklab-server.
+ *
+ * Everything is read from the json index structure, which is also embedded as-is in the search page.
+ */
 public class CorpusConfig {
-    private String jsonUnescaped;
+    private static final JsonFactory FACTORY = new JsonFactory();
 
-    private Document config;
+    private String jsonUnescaped;
 
     private String displayName;
 
     private String corpusDataFormat = "UNKNOWN";
 
-    public CorpusConfig(String xml, String jsonUnescaped) throws SAXException, IOException, ParserConfigurationException {
-        config = fromXml(xml);
-        this.jsonUnescaped = jsonUnescaped;
-        parse();
-    }
+    /** Annotations for which the frontend needs the list of all values (see {@link #getSelectProperties()}) */
+    private List<String> selectProperties = new ArrayList<>();
 
-    public static Document fromXml(String xml) throws ParserConfigurationException, SAXException, IOException {
-        return DocumentBuilderFactory.newInstance()
-            .newDocumentBuilder()
-            .parse(new InputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+    /**
+     * @param jsonUnescaped the json index structure
+     * @throws IOException when the json can't be parsed
+     */
+    public CorpusConfig(String jsonUnescaped) throws IOException {
+        this.jsonUnescaped = jsonUnescaped;
+        parse(jsonUnescaped);
     }
 
     public String getJsonUnescaped() {
@@ -53,90 +51,119 @@ public class CorpusConfig {
         return corpusDataFormat;
     }
 
-    private void parse() {
-        parseDisplayName();
-        parseCorpusDataFormat();
-    }
-
-    private void parseDisplayName() {
-        Element root = (Element) config.getElementsByTagName("blacklabResponse").item(0);
-        NodeList l = root.getChildNodes();
-        for (int i = 0; i < l.getLength(); ++i) {
-            Node n = l.item(i);
-            if (n.getNodeName().equals("displayName")) {
-                displayName = n.getTextContent();
-                return;
-            }
-        }
-    }
-
-    private void parseCorpusDataFormat() {
-        NodeList documentFormatTags = config.getElementsByTagName("documentFormat");
-        if (documentFormatTags.getLength() > 0)
-            this.corpusDataFormat = documentFormatTags.item(0).getTextContent();
-    }
-
     /**
      * Word properties can have a "uiType" property that determines if the input field should have
      * autocompletion enabled, use a dropdown list, be a number range, etc.
      * For the "select" value (e.g. a dropdown list) we need to get the possible values for that field from blacklab.
      * Since they aren't contained in the initial json payload unless we specifically request them.
      *
-     * This function parses the config, finds the fields marked with "select", and returns a comma-separated list of the field names.
+     * This returns a comma-separated list of the annotations marked with "select" (and the "pos" annotations and their subannotations).
      * We can then use that list to request the config again, with the field values.
      *
-     * @param xml the indexStructure/indexMetadata xml
-     * @return comma-separated list of fields with uitype "select"
-     * @throws ParserConfigurationException
-     * @throws SAXException
-     * @throws IOException
-     * @throws XPathExpressionException
+     * @return comma-separated list of fields with uitype "select", empty string if there are none
      */
-    public static String getSelectProperties(String xml) throws ParserConfigurationException, SAXException, IOException {
-        Document config = fromXml(xml);
-        ArrayList<String> selects = new ArrayList<>();
-
-        // We can't just retrieve the annotatedField/complexField entries directly, as there are two types of
-        // elements named annotatedField, one for the annotationGroups and one for the annotations themselves
-        Element fieldContainerElement = (Element) config.getElementsByTagName("complexFields").item(0);
-        if (fieldContainerElement == null) {
-            fieldContainerElement = (Element) config.getElementsByTagName("annotatedFields").item(0);
+    public String getSelectProperties() {
+        return selectProperties.stream().distinct().collect(Collectors.joining(","));
+    }
+
+    /**
+     * Extract everything we need in a single pass over the json, skipping over everything else (such as lists of values).
+     * No tree is built, which matters for corpora with many (long) lists of values.
+     */
+    private void parse(String json) throws IOException {
+        try (JsonParser p = FACTORY.createParser(json)) {
+            if (p.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("Index structure is not a json object");
+
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                JsonToken value = p.nextToken();
+                switch (name) {
+                    case "displayName":
+                        displayName = value == JsonToken.VALUE_STRING ? p.getText() : null;
+                        break;
+                    case "documentFormat":
+                        if (value == JsonToken.VALUE_STRING)
+                            corpusDataFormat = p.getText();
+                        break;
+                    case "annotatedFields":
+                    case "complexFields": // before blacklab 2.0
+                        parseAnnotatedFields(p);
+                        break;
+                    default:
+                        p.skipChildren();
+                }
+            }
+        }
+    }
+
+    /** Parser is positioned at the start of the annotatedFields object */
+    private void parseAnnotatedFields(JsonParser p) throws IOException {
+        if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+            p.skipChildren();
+            return;
+        }
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) { // name of the annotated field
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                continue;
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                p.nextToken();
+                if (name.equals("annotations") || name.equals("properties")) // "properties" before blacklab 2.0
+                    parseAnnotations(p);
+                else
+                    p.skipChildren();
+            }
         }
+    }
 
-        NodeList annotatedFieldElements = fieldContainerElement.getElementsByTagName("complexField");
-        if (annotatedFieldElements.getLength() == 0) {
-            annotatedFieldElements = fieldContainerElement.getElementsByTagName("annotatedField"); // since blacklab 2.0
+    /** Parser is positioned at the start of the annotations object of an annotated field */
+    private void parseAnnotations(JsonParser p) throws IOException {
+        if (p.getCurrentToken() != JsonToken.START_OBJECT) {
+            p.skipChildren();
+            return;
         }
-        for (int cfi = 0; cfi < annotatedFieldElements.getLength(); cfi++) {
-            Element annotatedFieldElement = (Element) annotatedFieldElements.item(cfi);
-            NodeList propertyElements = annotatedFieldElement.getElementsByTagName("property");
-            if (propertyElements.getLength() == 0) {
-                propertyElements = annotatedFieldElement.getElementsByTagName("annotation"); // since blacklab 2.0
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String annotation = p.getCurrentName();
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                continue;
             }
-            for (int ip = 0; ip < propertyElements.getLength(); ++ip) {
-                Node propertyNode = propertyElements.item(ip);
-                if (!(propertyNode instanceof Element))
-                    continue;
-
-                Element propertyElement = (Element) propertyNode;
-                if (propertyElement.getElementsByTagName("isInternal").item(0).getTextContent().equalsIgnoreCase("true"))
-                    continue;
-
-                String configType = propertyElement.getElementsByTagName("uiType").getLength() == 1
-                    ? propertyElement.getElementsByTagName("uiType").item(0).getTextContent()
-                    : "";
-                if ("select".equals(configType)) {
-                    selects.add(propertyElement.getAttribute("name"));
-                } else if ("pos".equals(configType)) {
-                    selects.add(propertyElement.getAttribute("name"));
-                    NodeList subAnnotations = propertyElement.getElementsByTagName("subannotation");
-                    for (int i = 0; i < subAnnotations.getLength(); ++i) {
-                        Element e = (Element) subAnnotations.item(i);
-                        selects.add(e.getTextContent());
+
+            String uiType = "";
+            boolean isInternal = false;
+            List<String> subannotations = new ArrayList<>();
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                JsonToken value = p.nextToken();
+                if (name.equals("uiType") && value == JsonToken.VALUE_STRING) {
+                    uiType = p.getText();
+                } else if (name.equals("isInternal")) {
+                    isInternal = value == JsonToken.VALUE_TRUE;
+                } else if (name.equals("subannotations") && value == JsonToken.START_ARRAY) {
+                    while (p.nextToken() != JsonToken.END_ARRAY) {
+                        if (p.getCurrentToken() == JsonToken.VALUE_STRING)
+                            subannotations.add(p.getText());
+                        else
+                            p.skipChildren();
                     }
+                } else {
+                    p.skipChildren();
                 }
             }
+
+            if (isInternal)
+                continue;
+            if ("select".equals(uiType)) {
+                selectProperties.add(annotation);
+            } else if ("pos".equals(uiType)) {
+                selectProperties.add(annotation);
+                selectProperties.addAll(subannotations);
+            }
         }
-        return selects.stream().distinct().collect(Collectors.joining(","));
     }
 }
@@ -0,0 +1,41 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so background work never keeps the servlet container from shutting down,
+ * and can be recognized in thread dumps.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+
+    private final int priority;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param prefix name of the threads, will be suffixed with a number
+     */
+    public DaemonThreadFactory(String prefix) {
+        this(prefix, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * @param prefix name of the threads, will be suffixed with a number
+     * @param priority thread priority, see {@link Thread#setPriority(int)}
+     */
+    public DaemonThreadFactory(String prefix, int priority) {
+        this.prefix = prefix;
+        this.priority = priority;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        t.setPriority(priority);
+        return t;
+    }
+}
@@ -0,0 +1,121 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a directory and everything below it, and reports every file or directory that is created, changed or removed.
+ * New subdirectories are watched as soon as they are created.
+ *
+ * Links to directories are followed. Changes made by other hosts on a network filesystem are usually not reported,
+ * so users shouldn't rely on this alone.
+ *
+ * Events are reported on a background thread. When the OS drops events (because there were too many),
+ * the root directory itself is reported as changed, so listeners should then treat everything as changed.
+ */
+public class DataDirWatcher implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DataDirWatcher.class);
+
+    private final Path root;
+
+    private final Consumer<Path> listener;
+
+    private final WatchService watchService;
+
+    /**
+     * Start watching.
+     *
+     * @param root directory to watch
+     * @param listener called with the path of every changed file or directory
+     * @throws IOException when the directory can't be watched
+     */
+    public DataDirWatcher(Path root, Consumer<Path> listener) throws IOException {
+        this.root = root;
+        this.listener = listener;
+        this.watchService = root.getFileSystem().newWatchService();
+
+        register(root);
+        new DaemonThreadFactory("corpus-frontend-watcher", Thread.MIN_PRIORITY).newThread(this::run).start();
+    }
+
+    /** Watch the directory and all its subdirectories */
+    private void register(Path dir) throws IOException {
+        // Follow links, corpus directories are often links to where the corpus is maintained. Loops are reported as failures.
+        Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                logger.debug("Cannot watch {}: {}", file, e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    report(root);
+                    continue;
+                }
+
+                Path changed = dir.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        register(changed);
+                    } catch (IOException e) {
+                        logger.warn("Cannot watch new directory {}: {}", changed, e.getMessage());
+                    }
+                }
+                report(changed);
+            }
+
+            // When the directory was removed the key is no longer valid, and is dropped automatically
+            key.reset();
+        }
+    }
+
+    private void report(Path changed) {
+        try {
+            listener.accept(changed);
+        } catch (RuntimeException e) {
+            logger.warn("Error handling change to {}", changed, e);
+        }
+    }
+
+    /** Stop watching, also stops the background thread. */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,75 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * A shared pool of persistent (keep-alive) http connections, used for all requests to blacklab-server.
+ *
+ * Connections are returned to the pool once the response has been fully read (or closed),
+ * so subsequent requests to the same host don't need to set up a new tcp connection.
+ */
+public class HttpClientPool implements Closeable {
+
+    /** Connections that have been idle for longer than this are closed */
+    private static final long MAX_IDLE_SECONDS = 30;
+
+    /** Check that pooled connections are still alive if they've been idle for this long, before reusing them */
+    private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final CloseableHttpClient client;
+
+    /**
+     * @param maxConnections maximum number of open connections in total
+     * @param maxConnectionsPerHost maximum number of open connections to a single host
+     * @param connectTimeoutMs timeout for establishing a connection, and for waiting on a free connection from the pool, 0 for no timeout
+     * @param readTimeoutMs maximum time to wait for data once connected, 0 for no timeout
+     */
+    public HttpClientPool(int maxConnections, int maxConnectionsPerHost, int connectTimeoutMs, int readTimeoutMs) {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMs)
+            .setConnectionRequestTimeout(connectTimeoutMs)
+            .setSocketTimeout(readTimeoutMs)
+            .build();
+
+        client = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .evictExpiredConnections()
+            .evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS)
+            .build();
+    }
+
+    public CloseableHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return human-readable summary of the current state of the pool
+     */
+    public String getStats() {
+        PoolStats stats = connectionManager.getTotalStats();
+        return String.format("leased: %d, available: %d, pending: %d, max: %d (per host: %d)",
+            stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax(), connectionManager.getDefaultMaxPerRoute());
+    }
+
+    /** Close all connections, the pool can not be used afterwards. */
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
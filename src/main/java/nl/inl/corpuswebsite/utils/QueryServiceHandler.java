@@ -1,17 +1,23 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,12 +46,76 @@ public class QueryServiceHandler {
         }
     }
 
+    /** Connections to blacklab-server, shared between all handlers. Lazily created with default settings if not configured. */
+    private static final AtomicReference<HttpClientPool> connectionPool = new AtomicReference<>();
+
+    /** Stops requests to blacklab-server while it's down or overloaded, null to always send requests. */
+    private static volatile CircuitBreaker circuitBreaker;
+
     private String webserviceBaseUrl;
 
     public QueryServiceHandler(String url) {
         webserviceBaseUrl = url;
     }
 
+    /**
+     * Set the connection pool used for all requests.
+     * Any previously set pool is not closed, that is up to the caller.
+     *
+     * @param pool the pool
+     */
+    public static void setConnectionPool(HttpClientPool pool) {
+        connectionPool.set(pool);
+    }
+
+    /** Without locking, as this is used by every request (and locks would pin virtual threads) */
+    public static HttpClientPool getConnectionPool() {
+        HttpClientPool pool = connectionPool.get();
+        if (pool != null)
+            return pool;
+
+        HttpClientPool created = new HttpClientPool(20, 20, 0, 0);
+        if (connectionPool.compareAndSet(null, created))
+            return created;
+        try {
+            created.close(); // someone else was first
+        } catch (IOException e) {
+            // nothing in it yet
+        }
+        return connectionPool.get();
+    }
+
+    /**
+     * Set the circuit breaker used for all requests.
+     *
+     * @param breaker the breaker, null to always send requests
+     */
+    public static void setCircuitBreaker(CircuitBreaker breaker) {
+        circuitBreaker = breaker;
+    }
+
+    /** @return the circuit breaker, or null if there is none */
+    public static CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Did the request fail because blacklab-server is unavailable (down, overloaded, or failing),
+     * rather than because of the request itself (such as a document that doesn't exist)?
+     *
+     * @param t the exception, possibly wrapping the exception from the request
+     * @return true for connection and read errors, requests refused by the circuit breaker, and 5xx responses
+     */
+    public static boolean isUnavailable(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof QueryException)
+                return ((QueryException) t).getHttpStatusCode() >= 500;
+            if (t instanceof IOException)
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Performs request to the webservice and returns the response.
      *
@@ -55,38 +125,189 @@ public class QueryServiceHandler {
      * @throws QueryException on error http code
      */
     public String makeRequest(Map<String, String[]> params) throws IOException, QueryException {
+        // We use the 401 to test if we are allowed to view the document contents, so pass its body on to the caller.
+        try (InputStream is = openStream(params, true)) {
+            return IOUtils.toString(is, "utf-8");
+        }
+    }
+
+    /**
+     * Performs request to the webservice and returns the response body as it is received,
+     * without reading it into memory first.
+     *
+     * The underlying connection is released when the stream is closed, so the caller must always close it.
+     * Unlike {@link #makeRequest(Map)}, a 401 Unauthorized response results in a QueryException.
+     *
+     * @param params parameters to send
+     * @return the response body
+     * @throws IOException on generic read/write error
+     * @throws QueryException on error http code
+     */
+    public InputStream makeRequestStream(Map<String, String[]> params) throws IOException, QueryException {
+        return openStream(params, false);
+    }
+
+    /**
+     * Like {@link #makeRequestStream(Map)}, but decodes the response as utf-8.
+     *
+     * @param params parameters to send
+     * @return the response body, must be closed by the caller
+     * @throws IOException on generic read/write error
+     * @throws QueryException on error http code
+     */
+    public Reader makeRequestReader(Map<String, String[]> params) throws IOException, QueryException {
+        return new InputStreamReader(openStream(params, false), StandardCharsets.UTF_8);
+    }
+
+    private InputStream openStream(Map<String, String[]> params, boolean allowUnauthorized) throws IOException, QueryException {
         String requestUrl = makeQueryString(params);
 
         logger.debug("Request: {}", requestUrl);
-        return fetchXml(requestUrl);
+        return fetch(requestUrl, allowUnauthorized);
     }
 
-    private static String fetchXml(String url) throws IOException, QueryException {
-        int code = -1;
-        String reason = null;
+    private static InputStream fetch(String url, boolean allowUnauthorized) throws IOException, QueryException {
+        HttpGet get;
+        try {
+            get = new HttpGet(url);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed URL", e);
+        }
+        get.setHeader("Accept", "application/xml");
+
+        // Fail at once while blacklab-server is down, instead of waiting for the timeout on every request
+        CircuitBreaker breaker = circuitBreaker;
+        CircuitBreaker.Permit permit = breaker != null ? breaker.allowRequest() : null;
+        if (breaker != null && permit == null)
+            throw new CircuitBreaker.OpenException("blacklab-server is not responding, retrying in " + breaker.getRetryIn() + "s");
+
+        HttpClientPool pool = getConnectionPool();
+        long start = System.currentTimeMillis();
+        CloseableHttpResponse response;
         try {
-            URL urlObj = new URL(url);
-            HttpURLConnection connection = (HttpURLConnection) urlObj.openConnection();
+            response = pool.getClient().execute(get);
+        } catch (IOException | RuntimeException e) {
+            if (breaker != null)
+                breaker.record(permit, false, System.currentTimeMillis() - start);
+            throw e;
+        }
+        try {
+            int code = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+
+            // Not an HTTP success (2xx) code (or 401 Unauthorized, when allowed)?
+            if ((code < 200 || code > 299) && !(code == 401 && allowUnauthorized)) {
+                // Client errors (such as an unknown document) mean blacklab-server is fine
+                if (breaker != null)
+                    breaker.record(permit, code < 500, System.currentTimeMillis() - start);
+                EntityUtils.consumeQuietly(entity);
+                throw new QueryException(code, response.getStatusLine().getReasonPhrase());
+            }
+
+            if (entity == null) {
+                if (breaker != null)
+                    breaker.record(permit, true, System.currentTimeMillis() - start);
+                response.close();
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            InputStream body;
             try {
-                connection.setRequestProperty("Accept", "application/xml");
-                connection.setRequestMethod("GET");
-                code = connection.getResponseCode();
-
-                // Not an HTTP success (2xx) code or 401 Unauthorized?
-                // (we use the 401 to test if we are allowed to view the document contents)
-                if ((code < 200 || code > 299) && code != 401) {
-                    reason = connection.getResponseMessage();
-                    throw new QueryException(code, reason);
-                }
-
-                try (InputStream response = code == 401 ? connection.getErrorStream() : connection.getInputStream()) {
-                    return StringUtils.join(IOUtils.readLines(response, "utf-8"), "\n");
-                }
+                body = entity.getContent();
+            } catch (IOException e) {
+                if (breaker != null)
+                    breaker.record(permit, false, System.currentTimeMillis() - start);
+                throw e;
+            }
+            return new ResponseStream(body, response, pool, breaker, permit, start);
+        } catch (IOException | QueryException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The body of a response. Closing it returns the connection to the pool (provided the body was consumed).
+     * The request is reported to the circuit breaker once the body has been read, so a server that sends the headers
+     * and then hangs (or breaks off) counts as failing, and the time includes reading the body.
+     */
+    private static class ResponseStream extends FilterInputStream {
+        private final CloseableHttpResponse response;
+
+        private final HttpClientPool pool;
+
+        /** Null when there is no circuit breaker */
+        private final CircuitBreaker breaker;
+
+        private final CircuitBreaker.Permit permit;
+
+        private final long start;
+
+        private boolean recorded;
+
+        ResponseStream(InputStream body, CloseableHttpResponse response, HttpClientPool pool, CircuitBreaker breaker, CircuitBreaker.Permit permit, long start) {
+            super(body);
+            this.response = response;
+            this.pool = pool;
+            this.breaker = breaker;
+            this.permit = permit;
+            this.start = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int b = super.read();
+                if (b == -1)
+                    record(true);
+                return b;
+            } catch (IOException e) {
+                record(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int n = super.read(b, off, len);
+                if (n == -1)
+                    record(true);
+                return n;
+            } catch (IOException e) {
+                record(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            try {
+                return super.skip(n);
+            } catch (IOException e) {
+                record(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Closed before the end without errors: the reader didn't need the rest, the server did its job
+            record(true);
+            try {
+                super.close();
             } finally {
-                connection.disconnect();
+                response.close();
+                logger.debug("Connection pool: {}", pool.getStats());
             }
-        } catch (MalformedURLException e) {
-            throw new IOException("Malformed URL", e);
+        }
+
+        /** Report the outcome of the request, only the first time. */
+        private void record(boolean succeeded) {
+            if (recorded || breaker == null)
+                return;
+            recorded = true;
+            breaker.record(permit, succeeded, System.currentTimeMillis() - start);
         }
     }
 
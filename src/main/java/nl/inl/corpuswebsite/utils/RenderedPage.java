@@ -0,0 +1,102 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The encoded output of a page, so it can be served again without rendering it again.
+ */
+public class RenderedPage {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] body;
+
+    private final String contentType;
+
+    private final String characterEncoding;
+
+    private final String etag;
+
+    /** The gzipped body, compressed when it's first needed */
+    private volatile byte[] gzippedBody;
+
+    /**
+     * @param body the encoded page
+     * @param contentType mime type of the page
+     * @param characterEncoding the encoding of body
+     */
+    public RenderedPage(byte[] body, String contentType, String characterEncoding) {
+        this.body = body;
+        this.contentType = contentType;
+        this.characterEncoding = characterEncoding;
+        this.etag = computeETag(body);
+    }
+
+    /** The encoded page, must not be modified. */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return approximate memory used by the page in bytes, for limiting the memory used by cached pages.
+     *         The compressed body is made when it's first needed, so it's estimated in advance, at a quarter of the body.
+     */
+    public long getSize() {
+        return body.length + body.length / 4L;
+    }
+
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    /**
+     * @return strong ETag (including the quotes), derived from the contents, so identical pages always get the same tag.
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /** The gzip-compressed page, must not be modified. */
+    public byte[] getGzippedBody() {
+        byte[] gzipped = gzippedBody;
+        if (gzipped == null) { // compressing twice in a race is harmless
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+            try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+                gz.write(body);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // can't happen, we're writing to memory
+            }
+            gzippedBody = gzipped = out.toByteArray();
+        }
+        return gzipped;
+    }
+
+    /**
+     * @return strong ETag for the gzipped page, different from that of the uncompressed page.
+     */
+    public String getGzippedETag() {
+        return etag.substring(0, etag.length() - 1) + "-gzip\"";
+    }
+
+    private static String computeETag(byte[] body) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(body);
+            StringBuilder sb = new StringBuilder(hash.length * 2 + 2).append('"');
+            for (byte b : hash) {
+                sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every jvm supports SHA-1
+        }
+    }
+}
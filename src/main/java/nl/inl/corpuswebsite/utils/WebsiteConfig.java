@@ -6,6 +6,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 import nl.inl.corpuswebsite.MainServlet;
 import org.apache.commons.configuration2.HierarchicalConfiguration;
@@ -69,6 +70,9 @@ public class WebsiteConfig {
     /** Raw id of this corpus, including username if this is a user corpus. Null if no corpus set. */
     private String corpusId;
 
+    /** The blacklab configuration this config was combined with, null if no corpus set or it couldn't be retrieved. */
+    private CorpusConfig corpusConfig;
+
     /**
      * Name to display for this corpus, null if no corpus set. Falls back to the corpus name if not explicitly configured.
      */
@@ -99,6 +103,7 @@ public class WebsiteConfig {
      * @throws ConfigurationException when the configFile can't be parsed.
      */
     public WebsiteConfig(File configFile, String corpusId, CorpusConfig corpusConfig, String contextPath) throws ConfigurationException {
+        this.corpusConfig = corpusConfig;
         load(configFile, corpusId, corpusConfig, contextPath);
     }
 
@@ -172,6 +177,25 @@ public class WebsiteConfig {
         return corpusId;
     }
 
+    /** @return the blacklab configuration this config was combined with, null if no corpus set or it couldn't be retrieved */
+    public CorpusConfig getCorpusConfig() {
+        return corpusConfig;
+    }
+
+    /**
+     * Is a config that was combined with the given blacklab configuration still up to date?
+     * Only when the blacklab configuration has been replaced (refreshed, or retrieved after it wasn't available before)
+     * does the config need to be combined again. While there's no current configuration (not retrieved at the moment, or the
+     * corpus doesn't exist), the config is kept as it is.
+     *
+     * @param combinedWith the blacklab configuration the config was combined with, may be null
+     * @param current the current blacklab configuration, empty if the corpus doesn't exist, null if it isn't known right now
+     * @return true if the config can still be used
+     */
+    public static boolean isUpToDate(CorpusConfig combinedWith, Optional<CorpusConfig> current) {
+        return current == null || current.orElse(null) == combinedWith;
+    }
+
     public String getCorpusDisplayName() {
         return corpusDisplayName;
     }
@@ -4,10 +4,17 @@ import javax.xml.transform.*;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import java.io.*;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Map.Entry;
-
+import java.util.Optional;
+
+/**
+ * A compiled stylesheet.
+ *
+ * Instances are threadsafe: every transformation gets its own (cheap) Transformer from the compiled Templates,
+ * so concurrent transformations don't block each other, and parameters are never shared between them.
+ */
 public class XslTransformer {
 
     /**
@@ -17,55 +24,27 @@ public class XslTransformer {
     private static final TransformerFactory FACTORY
             = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", XslTransformer.class.getClassLoader());
 
-    private final Map<String, String> params = new HashMap<>();
-
-    private final Transformer transformer;
-
-    private static final Map<String, Templates> TEMPLATES = new HashMap<>();
-
-    private Templates getTemplates(String id, Source sheet) {
-        synchronized (TEMPLATES) {
-            if (!TEMPLATES.containsKey(id)) {
-                try {
-                    TEMPLATES.put(id, FACTORY.newTemplates(sheet));
-                } catch (TransformerConfigurationException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }
-        }
-        return TEMPLATES.get(id);
+    /** Compiled stylesheets are threadsafe and can be shared. */
+    private final Templates templates;
 
-    }
-
-    /**
-     * returns Transformer from cached Templates or null
-     *
-     * @param id
-     * @return
-     */
-    public static Transformer get(String id) throws TransformerConfigurationException {
-        return TEMPLATES.get(id).newTransformer();
-    }
+    /** The file the stylesheet was read from, if any. */
+    private final File file;
 
-    /**
-     * clear Templates for id from cache
-     * @param id
-     * @return true when id was found and removed
-     */
-    public static boolean clear(String id) {
-        return TEMPLATES.remove(id) != null;
-    }
+    /** Modification time of the file when it was read. */
+    private final long lastModified;
 
     public XslTransformer(File stylesheet) throws TransformerConfigurationException, FileNotFoundException {
-        transformer = TEMPLATES.containsKey(stylesheet.getPath()) ? get(stylesheet.getPath()) : getTemplates(stylesheet.getPath(), new StreamSource(stylesheet)).newTransformer();
+        file = stylesheet;
+        lastModified = stylesheet.lastModified();
+        templates = FACTORY.newTemplates(new StreamSource(stylesheet));
     }
 
     public XslTransformer(InputStream stylesheet) throws TransformerConfigurationException {
-        transformer = FACTORY.newTransformer(new StreamSource(stylesheet));
+        this(new StreamSource(stylesheet));
     }
 
     public XslTransformer(Reader stylesheet) throws TransformerConfigurationException {
-        transformer = FACTORY.newTransformer(new StreamSource(stylesheet));
+        this(new StreamSource(stylesheet));
     }
 
     /**
@@ -75,58 +54,72 @@ public class XslTransformer {
      * @throws TransformerConfigurationException
      */
     public XslTransformer(String stylesheet) throws TransformerConfigurationException {
-        StreamSource streamSource = new StreamSource(stylesheet);
-        transformer = TEMPLATES.containsKey(stylesheet) ? get(stylesheet) : getTemplates(stylesheet, streamSource).newTransformer();
+        this(new StreamSource(stylesheet));
     }
 
+    /**
+     * @param stylesheet the system id (usually the url) of the stylesheet, used to resolve relative imports and in error messages
+     * @param sheet the contents of the stylesheet
+     * @throws TransformerConfigurationException
+     */
     public XslTransformer(String stylesheet, Reader sheet) throws TransformerConfigurationException {
-        transformer = TEMPLATES.containsKey(stylesheet) ? get(stylesheet) : getTemplates(stylesheet, new StreamSource(sheet)).newTransformer();
+        this(new StreamSource(sheet, stylesheet));
     }
 
-    public String transform(String source)
-            throws TransformerException {
-        StreamSource ssSource = new StreamSource(new StringReader(source));
-        StringWriter result = new StringWriter();
-        StreamResult streamResult = new StreamResult(result);
-
-        synchronized (transformer) {
-            for (Entry<String, String> e : params.entrySet()) {
-                transformer.setParameter(e.getKey(), e.getValue());
-            }
-
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.transform(ssSource, streamResult);
-            transformer.reset();
-        }
-
-        return result.toString();
+    private XslTransformer(Source source) throws TransformerConfigurationException {
+        file = null;
+        lastModified = 0;
+        templates = FACTORY.newTemplates(source);
     }
 
-    public <W extends Writer> W streamTransform(Reader source, W result)
-            throws TransformerException {
-        StreamSource ssSource = new StreamSource(source);
-        StreamResult streamResult = new StreamResult(result);
+    /**
+     * @return the file this stylesheet was read from, if any
+     */
+    public Optional<File> getFile() {
+        return Optional.ofNullable(file);
+    }
 
-        synchronized (transformer) {
-            for (Entry<String, String> e : params.entrySet()) {
-                transformer.setParameter(e.getKey(), e.getValue());
-            }
+    /**
+     * @return true if this stylesheet was read from a file, and that file has since been changed or removed.
+     */
+    public boolean isModified() {
+        return file != null && file.lastModified() != lastModified;
+    }
 
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.transform(ssSource, streamResult);
-            transformer.reset();
-        }
-        return result;
+    public String transform(String source) throws TransformerException {
+        return transform(source, Collections.emptyMap());
+    }
 
+    /**
+     * @param source the xml to transform
+     * @param params stylesheet parameters, only used for this transformation
+     * @return the result
+     * @throws TransformerException
+     */
+    public String transform(String source, Map<String, String> params) throws TransformerException {
+        return streamTransform(new StringReader(source), new StringWriter(), params).toString();
     }
 
-    public void addParameter(String key, String value) {
-        params.put(key, value);
+    public <W extends Writer> W streamTransform(Reader source, W result) throws TransformerException {
+        return streamTransform(source, result, Collections.emptyMap());
     }
 
-    public void clearParameters() {
-        params.clear();
+    /**
+     * @param source the xml to transform
+     * @param result where to write the result
+     * @param params stylesheet parameters, only used for this transformation
+     * @return the result writer
+     * @throws TransformerException
+     */
+    public <W extends Writer> W streamTransform(Reader source, W result, Map<String, String> params) throws TransformerException {
+        Transformer transformer = templates.newTransformer();
+        for (Entry<String, String> e : params.entrySet()) {
+            transformer.setParameter(e.getKey(), e.getValue());
+        }
+
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.transform(new StreamSource(source), new StreamResult(result));
+        return result;
     }
 }
@@ -0,0 +1,315 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class CacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        Cache<String, String> cache = new Cache<>(2, String::toUpperCase);
+        cache.get("a");
+        cache.get("b");
+        cache.get("a"); // b is now the least recently used
+        cache.get("c");
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+    }
+
+    @Test
+    public void evictsByWeight() {
+        Cache<String, String> cache = new Cache<String, String>(100, k -> k).setWeigher(String::length, 10);
+        cache.get("aaaaa");
+        cache.get("bbbbb");
+        assertEquals(10, cache.weight());
+
+        cache.get("ccc");
+        assertFalse(cache.contains("aaaaa"));
+        assertEquals(8, cache.weight());
+
+        cache.invalidate("bbbbb");
+        assertEquals(3, cache.weight());
+        cache.invalidateAll();
+        assertEquals(0, cache.weight());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void keepsEntriesThatMayNotBeEvicted() {
+        Cache<String, String> cache = new Cache<String, String>(2, k -> k).setEvictable(k -> !k.equals("keep"));
+        cache.get("keep");
+        cache.get("a");
+        cache.get("b");
+
+        assertTrue(cache.contains("keep"));
+        assertFalse(cache.contains("a"));
+        assertTrue(cache.contains("b"));
+    }
+
+    @Test
+    public void loadsOnceForConcurrentRequests() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Cache<String, String> cache = new Cache<>(10, k -> {
+            if (!k.equals("key"))
+                return k + "!";
+            loads.incrementAndGet();
+            loading.countDown();
+            await(release);
+            return k + "!";
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(9);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; ++i)
+                results.add(executor.submit(() -> cache.get("key")));
+
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            // A different key isn't held up by the load in progress
+            assertEquals("other!", executor.submit(() -> cache.get("other")).get(5, TimeUnit.SECONDS));
+            assertNull(cache.getIfPresent("key"));
+            release.countDown();
+
+            for (Future<String> result : results)
+                assertEquals("key!", result.get(5, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+            assertEquals(3, cache.misses()); // "key", "other", and the getIfPresent above
+            assertEquals(7, cache.hits());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void doesNotCacheErrors() {
+        AtomicInteger loads = new AtomicInteger();
+        Cache<String, String> cache = new Cache<>(10, k -> {
+            if (loads.incrementAndGet() == 1)
+                throw new IllegalStateException("first load fails");
+            return k;
+        });
+
+        try {
+            cache.get("a");
+            fail("expected the loader's exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, cache.size());
+        assertEquals("a", cache.get("a"));
+    }
+
+    @Test
+    public void expires() {
+        AtomicLong now = new AtomicLong();
+        AtomicInteger loads = new AtomicInteger();
+        Cache<String, Integer> cache = new Cache<String, Integer>(10, k -> loads.incrementAndGet(), now::get).setTimeToLive(v -> 20);
+        assertEquals(1, (int) cache.get("a"));
+        now.set(19);
+        assertEquals(1, (int) cache.get("a"));
+
+        now.set(20);
+        assertFalse(cache.contains("a"));
+        assertEquals(2, (int) cache.get("a"));
+    }
+
+    @Test
+    public void servesExpiredValueWhenLoadingFails() {
+        AtomicLong now = new AtomicLong();
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, String> loader = k -> {
+            if (loads.incrementAndGet() > 1)
+                throw new IllegalStateException("server down");
+            return "first";
+        };
+        Cache<String, String> cache = new Cache<>(10, loader, now::get).setTimeToLive(v -> 20).setServeStaleOnError(60000, t -> true);
+        assertEquals("first", cache.get("a"));
+
+        now.set(20);
+        assertEquals("first", cache.get("a"));
+        assertEquals(1, cache.staleHits());
+        // Not retried until the retry delay has passed
+        now.set(20 + 59999);
+        assertEquals("first", cache.get("a"));
+        assertEquals(2, loads.get());
+
+        now.set(20 + 60000);
+        assertEquals("first", cache.get("a"));
+        assertEquals(3, loads.get());
+        assertEquals(2, cache.staleHits());
+    }
+
+    @Test
+    public void passesOnErrorsWithoutExpiredValue() {
+        Cache<String, String> cache = new Cache<String, String>(10, k -> { throw new IllegalStateException("server down"); })
+            .setServeStaleOnError(60000, t -> true);
+        try {
+            cache.get("a");
+            fail("expected the loader's exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, cache.staleHits());
+    }
+
+    @Test
+    public void dropsExpiredValueForOtherErrors() {
+        AtomicLong now = new AtomicLong();
+        AtomicInteger loads = new AtomicInteger();
+        Cache<String, String> cache = new Cache<String, String>(10, k -> {
+            if (loads.incrementAndGet() > 1)
+                throw new IllegalArgumentException("gone");
+            return "first";
+        }, now::get).setTimeToLive(v -> 20).setServeStaleOnError(60000, t -> t instanceof IllegalStateException);
+        assertEquals("first", cache.get("a"));
+
+        now.set(20);
+        try {
+            cache.get("a");
+            fail("expected the loader's exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, cache.staleHits());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void refreshesInBackground() {
+        AtomicInteger loads = new AtomicInteger();
+        Cache<String, String> cache = new Cache<String, String>(10, k -> k + loads.incrementAndGet()).setRefreshExecutor(Runnable::run);
+        assertEquals("a1", cache.get("a"));
+        assertEquals("b2", cache.get("b"));
+
+        cache.refresh("a").join();
+        assertEquals("a3", cache.get("a"));
+        assertEquals("b2", cache.get("b"));
+
+        // Nothing to refresh
+        cache.refresh("c").join();
+        assertFalse(cache.contains("c"));
+        assertEquals(3, loads.get());
+
+        cache.refreshIf(k -> k.equals("b")).join();
+        assertEquals("a3", cache.get("a"));
+        assertEquals("b4", cache.get("b"));
+    }
+
+    @Test
+    public void keepsValueWhenRefreshFails() {
+        AtomicInteger loads = new AtomicInteger();
+        Cache<String, String> cache = new Cache<String, String>(10, k -> {
+            if (loads.incrementAndGet() > 1)
+                throw new IllegalStateException("server down");
+            return "first";
+        }).setRefreshExecutor(Runnable::run);
+        assertEquals("first", cache.get("a"));
+
+        try {
+            cache.refresh("a").join();
+            fail("expected the loader's exception");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals("first", cache.get("a"));
+    }
+
+    @Test
+    public void refreshesAfterAWhile() {
+        AtomicLong now = new AtomicLong();
+        AtomicInteger loads = new AtomicInteger();
+        Cache<String, Integer> cache = new Cache<String, Integer>(10, k -> loads.incrementAndGet(), now::get).setRefreshAfter(100, Runnable::run);
+        assertEquals(1, (int) cache.get("a"));
+        now.set(99);
+        assertEquals(1, (int) cache.get("a"));
+
+        // The old value is returned, the new one is there for the next request
+        now.set(100);
+        assertEquals(1, (int) cache.get("a"));
+        assertEquals(2, (int) cache.get("a"));
+    }
+
+    @Test
+    public void removesIdleEntries() {
+        AtomicLong now = new AtomicLong();
+        Cache<String, String> cache = new Cache<String, String>(10, k -> k, now::get)
+            .setEvictable(k -> !k.equals("keep"))
+            .setMaxIdle(100);
+        cache.get("keep");
+        cache.get("idle");
+        cache.get("used");
+
+        now.set(60);
+        cache.get("used");
+
+        // Idle entries are removed when another entry is added
+        now.set(101);
+        cache.get("new");
+        assertTrue(cache.contains("keep"));
+        assertFalse(cache.contains("idle"));
+        assertTrue(cache.contains("used"));
+        assertTrue(cache.contains("new"));
+    }
+
+    @Test
+    public void evictsByWeightAfterRefresh() {
+        AtomicInteger loads = new AtomicInteger();
+        // The value for "a" gets heavier when it's refreshed
+        Cache<String, String> cache = new Cache<String, String>(10, k -> loads.incrementAndGet() > 2 ? "aaaaaaaaa" : k + k + k)
+            .setWeigher(String::length, 10)
+            .setRefreshExecutor(Runnable::run);
+        cache.get("a");
+        cache.get("b");
+        assertEquals(6, cache.weight());
+
+        cache.refresh("a").join();
+        assertEquals("aaaaaaaaa", cache.peek("a"));
+        assertFalse(cache.contains("b"));
+        assertEquals(9, cache.weight());
+    }
+
+    @Test
+    public void peekIsNotALookup() {
+        Cache<String, String> cache = new Cache<>(2, k -> k);
+        cache.get("a");
+        cache.get("b");
+        assertEquals("a", cache.peek("a"));
+        assertNull(cache.peek("c"));
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.misses());
+
+        // Not a use either, so "a" is still the first to go
+        cache.get("c");
+        assertFalse(cache.contains("a"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
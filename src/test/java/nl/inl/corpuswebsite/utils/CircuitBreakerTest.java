@@ -0,0 +1,127 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import nl.inl.corpuswebsite.utils.CircuitBreaker.Permit;
+import nl.inl.corpuswebsite.utils.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+    private static final long RETRY_DELAY = 30000;
+
+    private final AtomicLong now = new AtomicLong(1000000);
+
+    /** Opens at 50% failures, requests of 10s or longer count as failed */
+    private final CircuitBreaker breaker = new CircuitBreaker("test", 50, 10000, RETRY_DELAY, now::get);
+
+    private void requests(int succeeded, int failed) {
+        for (int i = 0; i < succeeded; ++i)
+            breaker.record(breaker.allowRequest(), true, 10);
+        for (int i = 0; i < failed; ++i)
+            breaker.record(breaker.allowRequest(), false, 10);
+    }
+
+    private void open() {
+        requests(0, CircuitBreaker.MIN_REQUESTS);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void opensAtFailureRate() {
+        requests(5, 4);
+        assertEquals(State.CLOSED, breaker.getState());
+        requests(0, 1); // 5 of 10
+        assertEquals(State.OPEN, breaker.getState());
+        assertNull(breaker.allowRequest());
+        assertEquals(1, breaker.getRefused());
+        assertEquals(RETRY_DELAY / 1000, breaker.getRetryIn());
+    }
+
+    @Test
+    public void needsMinimumNumberOfRequests() {
+        requests(0, CircuitBreaker.MIN_REQUESTS - 1);
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void countsSlowRequestsAsFailed() {
+        for (int i = 0; i < CircuitBreaker.MIN_REQUESTS; ++i)
+            breaker.record(breaker.allowRequest(), true, 10000);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void startsNewWindow() {
+        requests(CircuitBreaker.WINDOW_SIZE, 0);
+        // 5 of the last 10, but 5 of 30 since startup
+        requests(5, 5);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void allowsSingleTrialAfterDelay() {
+        open();
+        now.addAndGet(RETRY_DELAY);
+        Permit trial = breaker.allowRequest();
+        assertNotNull(trial);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertNull(breaker.allowRequest());
+
+        breaker.record(trial, true, 10);
+        assertEquals(State.CLOSED, breaker.getState());
+        assertNotNull(breaker.allowRequest());
+    }
+
+    @Test
+    public void reopensWhenTrialFails() {
+        open();
+        now.addAndGet(RETRY_DELAY);
+        breaker.record(breaker.allowRequest(), false, 10);
+        assertEquals(State.OPEN, breaker.getState());
+        assertNull(breaker.allowRequest());
+    }
+
+    @Test
+    public void allowsNewTrialWhenTrialDoesNotReport() {
+        open();
+        now.addAndGet(RETRY_DELAY);
+        Permit lost = breaker.allowRequest();
+        assertNotNull(lost);
+        now.addAndGet(RETRY_DELAY);
+        Permit trial = breaker.allowRequest();
+        assertNotNull(trial);
+
+        // The first trial reporting late doesn't decide anything
+        breaker.record(lost, false, 10);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        breaker.record(trial, true, 10);
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void ignoresRequestsSentBeforeStateChange() {
+        Permit old = breaker.allowRequest();
+        open();
+        now.addAndGet(RETRY_DELAY);
+        Permit trial = breaker.allowRequest();
+
+        // A request that hung since before the breaker opened doesn't reopen it
+        breaker.record(old, false, 60000);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        breaker.record(trial, true, 10);
+        assertEquals(State.CLOSED, breaker.getState());
+
+        // Nor does it count against the new window
+        for (int i = 0; i < CircuitBreaker.MIN_REQUESTS; ++i)
+            breaker.record(old, false, 60000);
+        requests(CircuitBreaker.MIN_REQUESTS / 2, 0);
+        requests(0, CircuitBreaker.MIN_REQUESTS / 2 - 1);
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,39 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import org.junit.Test;
+
+public class WebsiteConfigTest {
+
+    @Test
+    public void keepsConfigForUnknownCorpus() {
+        // blacklab-server doesn't know the corpus, so there was nothing to combine with, and there still isn't
+        assertTrue(WebsiteConfig.isUpToDate(null, Optional.empty()));
+    }
+
+    @Test
+    public void keepsConfigWhileCorpusConfigIsUnavailable() throws IOException {
+        assertTrue(WebsiteConfig.isUpToDate(null, null));
+        assertTrue(WebsiteConfig.isUpToDate(new CorpusConfig("{}"), null));
+    }
+
+    @Test
+    public void keepsConfigWhileCorpusConfigIsUnchanged() throws IOException {
+        CorpusConfig corpusConfig = new CorpusConfig("{}");
+        assertTrue(WebsiteConfig.isUpToDate(corpusConfig, Optional.of(corpusConfig)));
+    }
+
+    @Test
+    public void combinesAgainWhenCorpusConfigChanges() throws IOException {
+        CorpusConfig corpusConfig = new CorpusConfig("{}");
+        assertFalse(WebsiteConfig.isUpToDate(corpusConfig, Optional.of(new CorpusConfig("{}"))));
+        assertFalse(WebsiteConfig.isUpToDate(corpusConfig, Optional.empty()));
+        // blacklab-server was down when the config was combined, and is back now
+        assertFalse(WebsiteConfig.isUpToDate(null, Optional.of(corpusConfig)));
+    }
+}